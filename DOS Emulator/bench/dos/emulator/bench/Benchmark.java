@@ -0,0 +1,97 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.bench;
+
+import java.util.function.LongSupplier;
+
+/**
+ * One thing to measure. The body does some work and returns how many
+ * operations (instructions, characters, frames) it did. It is called over and
+ * over for a fixed time, first to let the JVM warm up and then for the timed
+ * iterations.
+ *
+ * @author jkim13
+ */
+class Benchmark {
+
+    final String name;
+    /**
+     * What the body counts, e.g. "instructions"
+     */
+    final String unit;
+    private final LongSupplier body;
+
+    Benchmark(String name, String unit, LongSupplier body) {
+        this.name = name;
+        this.unit = unit;
+        this.body = body;
+    }
+
+    /**
+     * Operations per second for each timed iteration
+     */
+    static class Result {
+
+        final Benchmark benchmark;
+        final double[] rates;
+
+        Result(Benchmark benchmark, double[] rates) {
+            this.benchmark = benchmark;
+            this.rates = rates;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double rate : rates) {
+                sum += rate;
+            }
+            return sum / rates.length;
+        }
+
+        double min() {
+            double min = Double.MAX_VALUE;
+            for (double rate : rates) {
+                min = Math.min(min, rate);
+            }
+            return min;
+        }
+
+        double max() {
+            double max = 0;
+            for (double rate : rates) {
+                max = Math.max(max, rate);
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Run the body for one iteration.
+     *
+     * @param nanos How long to keep calling it
+     * @return Operations per second
+     */
+    private double iteration(long nanos) {
+        long operations = 0;
+        long start = System.nanoTime(), elapsed;
+        do {
+            operations += body.getAsLong();
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return operations * 1e9 / elapsed;
+    }
+
+    Result measure(int warmups, int iterations, long nanos) {
+        for (int i = 0; i < warmups; i++) {
+            iteration(nanos);
+        }
+        double[] rates = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            rates[i] = iteration(nanos);
+        }
+        return new Result(this, rates);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmarks and prints operations per second for each. Run it from
+ * the project directory, so that data/test.bin can be found:
+ *
+ * <pre>
+ * cd "DOS Emulator" &amp;&amp; javac -d ../out $(find src bench -name '*.java') &amp;&amp; cd ..
+ * java -cp out dos.emulator.bench.Benchmarks [-time ms] [-iterations n] [name...]
+ * </pre>
+ *
+ * With names, only benchmarks whose name starts with one of them are run, so
+ * "alu" runs alu_mix and alu_mix.nojit. Compare runs on the same machine only,
+ * and look at the min/max spread before trusting a difference.
+ *
+ * @author jkim13
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) {
+        long time = 1000;
+        int iterations = 5;
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-time") && i + 1 < args.length) {
+                time = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-iterations") && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                names.add(args[i]);
+            }
+        }
+
+        List<Benchmark> all = new ArrayList<>();
+        CpuBenchmarks.add(all);
+        DisplayBenchmarks.add(all);
+
+        System.out.printf("%-20s %14s %14s %14s  %s%n", "benchmark", "mean/s", "min/s", "max/s", "unit");
+        for (Benchmark benchmark : all) {
+            if (!names.isEmpty() && names.stream().noneMatch(benchmark.name::startsWith)) {
+                continue;
+            }
+            Benchmark.Result result = benchmark.measure(3, iterations, time * 1_000_000);
+            System.out.printf("%-20s %14.0f %14.0f %14.0f  %s%n", benchmark.name,
+                    result.mean(), result.min(), result.max(), benchmark.unit);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.bench;
+
+import dos.emulator.Machine;
+import dos.emulator.cpu.CPU;
+import dos.emulator.cpu.MemoryMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Instruction throughput on small loops that never end, each aimed at one part
+ * of the CPU, plus a whole run of data/test.bin.
+ *
+ * @author jkim13
+ */
+class CpuBenchmarks {
+
+    /**
+     * Instructions per call of a loop benchmark
+     */
+    private static final int SLICE = 100000;
+
+    /**
+     * Where the loops are put. They run at 1000:0000.
+     */
+    private static final int CODE_SEGMENT = 0x1000;
+
+    /**
+     * ADD, XOR, SUB, AND, OR, ADC, INC, CMP, SHL on registers
+     */
+    private static final byte[] ALU_MIX = bytes(
+            0xB9, 0x00, 0x00, // 00: mov cx, 0
+            0x01, 0xD8, //       03: add ax, bx
+            0x31, 0xC2, //       05: xor dx, ax
+            0x29, 0xCB, //       07: sub bx, cx
+            0x21, 0xD6, //       09: and si, dx
+            0x09, 0xC7, //       0B: or di, ax
+            0x83, 0xD0, 0x01, // 0D: adc ax, 1
+            0x43, //             10: inc bx
+            0x39, 0xD0, //       11: cmp ax, dx
+            0xD1, 0xE0, //       13: shl ax, 1
+            0xE2, 0xEC, //       15: loop 03
+            0xEB, 0xE7 //        17: jmp 00
+    );
+
+    /**
+     * REP MOVSW of 8K, then MOVSB one at a time. DS and ES are 2000.
+     */
+    private static final byte[] MOVS = bytes(
+            0xFC, //             00: cld
+            0x31, 0xF6, //       01: xor si, si
+            0xBF, 0x00, 0x80, // 03: mov di, 8000
+            0xB9, 0x00, 0x10, // 06: mov cx, 1000
+            0xF3, 0xA5, //       09: rep movsw
+            0x31, 0xF6, //       0B: xor si, si
+            0xBF, 0x00, 0x80, // 0D: mov di, 8000
+            0xB9, 0x00, 0x01, // 10: mov cx, 100
+            0xA4, //             13: movsb
+            0xE2, 0xFD, //       14: loop 13
+            0xEB, 0xE8 //        16: jmp 00
+    );
+
+    /**
+     * Short forward jumps that go both ways
+     */
+    private static final byte[] BRANCHES = bytes(
+            0x40, //             00: inc ax
+            0xA8, 0x01, //       01: test al, 1
+            0x74, 0x01, //       03: jz 06
+            0x4B, //             05: dec bx
+            0x39, 0xD8, //       06: cmp ax, bx
+            0x7C, 0x01, //       08: jl 0B
+            0x90, //             0A: nop
+            0x75, 0x01, //       0B: jnz 0E
+            0x90, //             0D: nop
+            0xEB, 0xF0 //        0E: jmp 00
+    );
+
+    /**
+     * Every kind of memory operand, including read-modify-write and a
+     * segment override. DS, ES and SS are 3000.
+     */
+    private static final byte[] MODRM = bytes(
+            0xBB, 0x00, 0x01, //       00: mov bx, 100
+            0xBE, 0x10, 0x00, //       03: mov si, 10
+            0xBF, 0x20, 0x00, //       06: mov di, 20
+            0xBD, 0x00, 0x02, //       09: mov bp, 200
+            0x01, 0x40, 0x04, //       0C: add [bx+si+4], ax
+            0x8B, 0x53, 0xFE, //       0F: mov dx, [bp+di-2]
+            0x87, 0x0C, //             12: xchg [si], cx
+            0xFF, 0x47, 0x0A, //       14: inc word [bx+0A]
+            0x31, 0x85, 0x00, 0x01, // 17: xor [di+100], ax
+            0x8A, 0x21, //             1B: mov ah, [bx+di]
+            0x80, 0x32, 0x55, //       1D: xor byte [bp+si], 55
+            0x26, 0x88, 0x07, //       20: mov es:[bx], al
+            0xEB, 0xE7 //              23: jmp 0C
+    );
+
+    /**
+     * STOSW one word at a time to ES:0, 2000 words
+     */
+    private static final byte[] STORE = bytes(
+            0x31, 0xFF, //       00: xor di, di
+            0xB9, 0xD0, 0x07, // 02: mov cx, 2000
+            0xAB, //             05: stosw
+            0xE2, 0xFD, //       06: loop 05
+            0xEB, 0xF6 //        08: jmp 00
+    );
+
+    /**
+     * LODSW one word at a time from DS:0, 2048 words
+     */
+    private static final byte[] LOAD = bytes(
+            0x31, 0xF6, //       00: xor si, si
+            0xB9, 0x00, 0x08, // 02: mov cx, 800
+            0xAD, //             05: lodsw
+            0xE2, 0xFD, //       06: loop 05
+            0xEB, 0xF6 //        08: jmp 00
+    );
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    /**
+     * A machine that runs code at CODE_SEGMENT:0 with all the data segments
+     * set to data_segment.
+     */
+    private static Machine load(byte[] code, int data_segment, boolean jit) {
+        Machine machine = new Machine();
+        CPU cpu = machine.cpu;
+        for (int i = 0; i < code.length; i++) {
+            cpu.write_byte((CODE_SEGMENT << 4) + i, code[i]);
+        }
+        cpu.cs = CODE_SEGMENT;
+        cpu.eip = 0;
+        cpu.ds = cpu.es = cpu.ss = data_segment;
+        cpu.jit_enabled = jit;
+        return machine;
+    }
+
+    private static Benchmark loop(String name, byte[] code, int data_segment, boolean jit) {
+        Machine machine = load(code, data_segment, jit);
+        return new Benchmark(name, "instructions", () -> machine.run_slice(SLICE));
+    }
+
+    private static void add_loop(List<Benchmark> list, String name, byte[] code, int data_segment) {
+        list.add(loop(name, code, data_segment, true));
+        list.add(loop(name + ".nojit", code, data_segment, false));
+    }
+
+    /**
+     * A page that is handled entirely by a MemoryMap, for reads and writes
+     */
+    private static class NullDevice extends MemoryMap {
+
+        int last;
+
+        @Override
+        public void handler(int addr, int data) {
+            last = data;
+        }
+
+        @Override
+        public int read_handler(int addr) {
+            return addr;
+        }
+    }
+
+    /**
+     * Run data/test.bin from reset until it halts, over and over.
+     */
+    private static Benchmark test_bin(byte[] image) {
+        Machine machine = new Machine();
+        machine.load_bios(image);
+        return new Benchmark("test_bin", "instructions", () -> {
+            machine.cpu.reset();
+            long instructions = 0;
+            while (!machine.is_halted()) {
+                instructions += machine.run_slice(SLICE);
+            }
+            return instructions;
+        });
+    }
+
+    static void add(List<Benchmark> list) {
+        add_loop(list, "alu_mix", ALU_MIX, 0x2000);
+        add_loop(list, "movs", MOVS, 0x2000);
+        add_loop(list, "branches", BRANCHES, 0x2000);
+        add_loop(list, "modrm", MODRM, 0x3000);
+
+        // MemoryMap dispatch: the same loops on plain RAM, on the text
+        // screen (write handler, data also goes to RAM) and on a page that
+        // is all handler
+        list.add(loop("store.ram", STORE, 0x4000, true));
+        list.add(loop("store.screen", STORE, 0xB800, true));
+        Machine mmio_store = load(STORE, 0xD000, true);
+        mmio_store.cpu.add_mmio(new NullDevice(), 0xD0000);
+        list.add(new Benchmark("store.mmio", "instructions", () -> mmio_store.run_slice(SLICE)));
+        list.add(loop("load.ram", LOAD, 0x4000, true));
+        Machine mmio_load = load(LOAD, 0xD000, true);
+        mmio_load.cpu.add_mmio(new NullDevice(), 0xD0000);
+        list.add(new Benchmark("load.mmio", "instructions", () -> mmio_load.run_slice(SLICE)));
+
+        try {
+            list.add(test_bin(Files.readAllBytes(Paths.get("data/test.bin"))));
+        } catch (IOException e) {
+            System.err.println("data/test.bin not found, skipping test_bin");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.bench;
+
+import dos.emulator.HeadlessDisplay;
+import dos.emulator.Screen;
+import dos.emulator.cpu.CPU;
+import java.awt.GraphicsEnvironment;
+import java.util.List;
+
+/**
+ * Text mode rendering: drawing characters, and scrolling the whole screen up a
+ * line through text memory the way the BIOS does it.
+ *
+ * @author jkim13
+ */
+class DisplayBenchmarks {
+
+    private static final int ROWS = 25, COLS = 80;
+    private static final int TEXT = 0xB8000;
+
+    /**
+     * Move every row up one and fill the last one, then draw the frame.
+     */
+    private static void scroll(CPU cpu, int line) {
+        int row = COLS * 2;
+        for (int i = 0; i < (ROWS - 1) * row; i++) {
+            cpu.write_byte(TEXT + i, cpu.ram[TEXT + row + i]);
+        }
+        for (int i = 0; i < COLS; i++) {
+            cpu.write_byte(TEXT + (ROWS - 1) * row + i * 2, 'A' + (line + i) % 26);
+            cpu.write_byte(TEXT + (ROWS - 1) * row + i * 2 + 1, 0x07 + (line & 0x70));
+        }
+    }
+
+    static void add(List<Benchmark> list) {
+        CPU headless_cpu = new CPU(1024 * 1024);
+        HeadlessDisplay headless = new HeadlessDisplay(headless_cpu);
+        int[] line = {0};
+        list.add(new Benchmark("scroll.headless", "frames", () -> {
+            scroll(headless_cpu, line[0]++);
+            headless.get_framebuffer();
+            return 1;
+        }));
+
+        if (GraphicsEnvironment.isHeadless()) {
+            System.err.println("No display, skipping the Screen benchmarks");
+            return;
+        }
+        CPU cpu = new CPU(1024 * 1024);
+        Screen screen = new Screen(cpu);
+        int[] attributes = {0x07, 0x09, 0x02, 0x0E};
+        list.add(new Benchmark("write_character", "characters", () -> {
+            for (int y = 0; y < ROWS; y++) {
+                for (int x = 0; x < COLS; x++) {
+                    screen.write_character((char) ('A' + (x + y) % 26), attributes[x & 3], x, y);
+                }
+            }
+            screen.update();
+            return ROWS * COLS;
+        }));
+        list.add(new Benchmark("scroll.screen", "frames", () -> {
+            scroll(cpu, line[0]++);
+            screen.update();
+            return 1;
+        }));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.conformance;
+
+import dos.emulator.cpu.CPU;
+import dos.emulator.cpu.Lockstep;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Runs a BIOS image on the plain interpreter and, in lockstep, on the CPU
+ * with lazy flags, the JIT, or both, and prints the first place where they
+ * differ. See Lockstep.
+ *
+ * The last case runs register_loop() instead, with a device event every
+ * EVENT_PERIOD cycles that lands in the middle of its compiled block. The
+ * event saves the registers to memory, so the JIT has to fire it after the
+ * same instruction as the interpreter does.
+ *
+ * <pre>
+ * cd "DOS Emulator" &amp;&amp; javac -d ../out $(find src conformance -name '*.java') &amp;&amp; cd ..
+ * java -cp out dos.emulator.conformance.Cosimulation [-interval n] [-instructions n] [data/test.bin]
+ * </pre>
+ *
+ * @author jkim13
+ */
+public class Cosimulation {
+
+    /**
+     * Cycles between device events. Odd, so they don't line up with blocks.
+     */
+    private static final int EVENT_PERIOD = 97;
+    /**
+     * Where the event saves the registers
+     */
+    private static final int EVENT_ADDRESS = 0x500;
+
+    /**
+     * 64K image with a loop of register instructions long enough to be
+     * compiled, and a reset vector that jumps to it
+     *
+     * @return
+     */
+    private static byte[] register_loop() {
+        int[] code = {
+            0xB8, 0x34, 0x12, // MOV AX, 1234h
+            0x01, 0xD8, // ADD AX, BX
+            0x43, // INC BX
+            0x31, 0xC2, // XOR DX, AX
+            0x89, 0xD6, // MOV SI, DX
+            0x4F, // DEC DI
+            0x29, 0xC5, // SUB BP, AX
+            0x49, // DEC CX
+            0x75, 0xF0, // JNZ back to the start, 65536 times
+            0xF4 // HLT
+        };
+        int[] reset = {0xEA, 0x00, 0x00, 0x00, 0xF0}; // JMP F000:0000
+        byte[] image = new byte[0x10000];
+        for (int i = 0; i < code.length; i++) {
+            image[i] = (byte) code[i];
+        }
+        for (int i = 0; i < reset.length; i++) {
+            image[0xFFF0 + i] = (byte) reset[i];
+        }
+        return image;
+    }
+
+    private static CPU load(byte[] image, boolean jit, boolean lazy_flags, boolean events) {
+        CPU cpu = new CPU(1024 * 1024);
+        int address = cpu.ram.length - image.length;
+        System.arraycopy(image, 0, cpu.ram, address, image.length);
+        cpu.reset();
+        cpu.jit_enabled = jit;
+        cpu.lazy_flags = lazy_flags;
+        if (events) {
+            cpu.next_event = EVENT_PERIOD;
+            cpu.event_handler = () -> {
+                for (int i = 0; i < 8; i++) {
+                    cpu.write_word(EVENT_ADDRESS + i * 2, cpu.registers[i]);
+                }
+                cpu.next_event += EVENT_PERIOD;
+            };
+        }
+        return cpu;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String file = "data/test.bin";
+        int interval = 1;
+        long instructions = 100_000_000;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-interval") && i + 1 < args.length) {
+                interval = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-instructions") && i + 1 < args.length) {
+                instructions = Long.parseLong(args[++i]);
+            } else {
+                file = args[i];
+            }
+        }
+        byte[] image = Files.readAllBytes(Paths.get(file));
+
+        String[] names = {"lazy flags", "jit", "jit and lazy flags", "jit with events"};
+        // jit, lazy flags, events
+        boolean[][] settings = {{false, true, false}, {true, false, false}, {true, true, false}, {true, true, true}};
+        boolean failed = false;
+        for (int i = 0; i < names.length; i++) {
+            byte[] program = settings[i][2] ? register_loop() : image;
+            Lockstep lockstep = new Lockstep(load(program, false, false, settings[i][2]),
+                    load(program, settings[i][0], settings[i][1], settings[i][2]));
+            lockstep.interval = interval;
+            String difference = lockstep.run(instructions);
+            if (difference == null) {
+                System.out.printf("%-20s same after %d instructions%n", names[i], lockstep.instructions);
+            } else {
+                System.out.printf("%-20s %s", names[i], difference);
+                failed = true;
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+}
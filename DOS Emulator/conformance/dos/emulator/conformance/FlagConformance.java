@@ -0,0 +1,368 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.conformance;
+
+import dos.emulator.cpu.CPU;
+import dos.emulator.cpu.HLTException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Checks the CPU against test-cpu/opcodes.out, which test-cpu/main.c made by
+ * running each ALU, shift and BCD instruction on a real x86 CPU.
+ *
+ * Every line is run as a real instruction (the same ones test-cpu/data.asm
+ * has) with AX = op1, CX = op2 and the flags from the file, and AX and the
+ * flags are compared afterwards, once with lazy flags and once without. Flags
+ * the manual calls undefined for an
+ * instruction are not compared. After that, every conditional jump is run
+ * with every combination of the flags it can look at, to check that it goes
+ * the right way. The file was made on a 386 or later, which
+ * masks shift counts to 5 bits like the 80186, so the CPU is run as an 80186.
+ *
+ * <pre>
+ * cd "DOS Emulator" &amp;&amp; javac -d ../out $(find src conformance -name '*.java') &amp;&amp; cd ..
+ * java -cp out dos.emulator.conformance.FlagConformance [test-cpu/opcodes.out]
+ * </pre>
+ *
+ * @author jkim13
+ */
+public class FlagConformance {
+
+    private static final int OSZAPC = CPU.OF | CPU.SF | CPU.ZF | CPU.AF | CPU.PF | CPU.CF;
+
+    /**
+     * Where the instruction under test is put
+     */
+    private static final int CODE_SEGMENT = 0x1000;
+
+    /**
+     * Failures printed for each instruction
+     */
+    private static final int MAX_REPORTED = 5;
+
+    /**
+     * One instruction from the file, e.g. "add8"
+     */
+    private static class Op {
+
+        final String name;
+        final int size;
+        final byte[] code;
+
+        Op(String name, int size, int... code) {
+            this.name = name;
+            this.size = size;
+            this.code = new byte[code.length];
+            for (int i = 0; i < code.length; i++) {
+                this.code[i] = (byte) code[i];
+            }
+        }
+
+        /**
+         * @return The flags that are defined after this op, for these inputs
+         */
+        int defined_flags(int count) {
+            String base = name.substring(0, name.length() - (size == 16 ? 2 : 1));
+            switch (base) {
+                case "and":
+                case "or":
+                case "xor":
+                case "test":
+                    return OSZAPC & ~CPU.AF;
+                case "rol":
+                case "ror":
+                case "rcl":
+                case "rcr":
+                    count &= 0x1F;
+                    if (count == 0) {
+                        return OSZAPC;
+                    }
+                    return count == 1 ? OSZAPC : OSZAPC & ~CPU.OF;
+                case "shl":
+                case "shr":
+                case "sar":
+                    count &= 0x1F;
+                    if (count == 0) {
+                        return OSZAPC;
+                    }
+                    int defined = OSZAPC & ~CPU.AF;
+                    if (count != 1) {
+                        defined &= ~CPU.OF;
+                    }
+                    if (count >= size && !base.equals("sar")) {
+                        defined &= ~CPU.CF;
+                    }
+                    return defined;
+                case "daa":
+                case "das":
+                    return OSZAPC & ~CPU.OF;
+                case "aaa":
+                    return CPU.AF | CPU.CF;
+                case "aam":
+                case "aad":
+                    return CPU.SF | CPU.ZF | CPU.PF;
+                default:
+                    return OSZAPC;
+            }
+        }
+
+        /**
+         * @return The bits of AX that the instruction leaves its result in
+         */
+        int result_mask() {
+            return size == 16 || name.startsWith("aa") ? 0xFFFF : 0xFF;
+        }
+    }
+
+    private static final Map<String, Op> OPS = new HashMap<>();
+
+    private static void add(Op op) {
+        OPS.put(op.name, op);
+    }
+
+    static {
+        String[] alu = {"add", "or", "adc", "sbb", "and", "sub", "xor", "cmp"};
+        for (int i = 0; i < alu.length; i++) {
+            add(new Op(alu[i] + "8", 8, i << 3, 0xC8)); // op al, cl
+            add(new Op(alu[i] + "16", 16, i << 3 | 1, 0xC8)); // op ax, cx
+        }
+        add(new Op("test8", 8, 0x84, 0xC8));
+        add(new Op("test16", 16, 0x85, 0xC8));
+        String[] shifts = {"rol", "ror", "rcl", "rcr", "shl", "shr", null, "sar"};
+        for (int i = 0; i < shifts.length; i++) {
+            if (shifts[i] != null) {
+                add(new Op(shifts[i] + "8", 8, 0xD2, 0xC0 | i << 3)); // op al, cl
+                add(new Op(shifts[i] + "16", 16, 0xD3, 0xC0 | i << 3)); // op ax, cl
+            }
+        }
+        add(new Op("daa8", 8, 0x27));
+        add(new Op("das8", 8, 0x2F));
+        add(new Op("aaa8", 8, 0x37));
+        add(new Op("aam8", 8, 0xD4, 0x0A));
+        add(new Op("aad8", 8, 0xD5, 0x0A));
+    }
+
+    /**
+     * The file, one array element per line
+     */
+    private static class Tests {
+
+        Op[] ops;
+        int[] op1, op2, in_flags, result, flags;
+        int count;
+
+        Tests(List<String> lines) {
+            int n = lines.size();
+            ops = new Op[n];
+            op1 = new int[n];
+            op2 = new int[n];
+            in_flags = new int[n];
+            result = new int[n];
+            flags = new int[n];
+            for (String line : lines) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int colon = line.indexOf(':');
+                Op op = OPS.get(line.substring(0, colon));
+                if (op == null) {
+                    throw new IllegalArgumentException("Unknown instruction: " + line);
+                }
+                String[] fields = line.substring(colon + 1).trim().split("\\s+");
+                ops[count] = op;
+                op1[count] = Integer.parseInt(fields[0], 16);
+                op2[count] = Integer.parseInt(fields[1], 16);
+                in_flags[count] = Integer.parseInt(fields[2], 16);
+                result[count] = Integer.parseInt(fields[3], 16);
+                flags[count] = Integer.parseInt(fields[4], 16);
+                count++;
+            }
+        }
+    }
+
+    /**
+     * What one worker found
+     */
+    private static class Failures {
+
+        final Map<Op, Integer> counts = new HashMap<>();
+        final List<String> messages = new ArrayList<>();
+    }
+
+    private static String flag_names(int flags) {
+        StringBuilder sb = new StringBuilder();
+        String names = "C.P.A.ZSTIDO";
+        for (int bit = 11; bit >= 0; bit--) {
+            if ((OSZAPC & 1 << bit) != 0 && (flags & 1 << bit) != 0) {
+                sb.append(names.charAt(bit));
+            }
+        }
+        return sb.length() == 0 ? "-" : sb.toString();
+    }
+
+    private static Failures run(Tests tests, int from, int to, boolean lazy) {
+        Failures failures = new Failures();
+        CPU cpu = new CPU(1024 * 1024);
+        cpu.reset();
+        cpu.set_architecture(80186);
+        cpu.lazy_flags = lazy;
+        for (int i = from; i < to; i++) {
+            Op op = tests.ops[i];
+            for (int j = 0; j < op.code.length; j++) {
+                cpu.write_byte((CODE_SEGMENT << 4) + j, op.code[j]);
+            }
+            cpu.write_byte((CODE_SEGMENT << 4) + op.code.length, 0xF4); // HLT
+            cpu.cs = CODE_SEGMENT;
+            cpu.eip = 0;
+            cpu.halted = false;
+            cpu.registers[CPU.AX] = tests.op1[i];
+            cpu.registers[CPU.CX] = tests.op2[i];
+            cpu.set_eflags(tests.in_flags[i]);
+            try {
+                cpu.run_for(1);
+            } catch (HLTException e) {
+                // Can't happen, run_for stops at HLT
+            }
+            int mask = op.defined_flags(tests.op2[i] & 0xFF);
+            int result = cpu.registers[CPU.AX] & op.result_mask();
+            int expected = tests.result[i] & op.result_mask();
+            int flags = cpu.get_eflags() & mask;
+            int expected_flags = tests.flags[i] & mask;
+            if (result != expected || flags != expected_flags) {
+                int n = failures.counts.merge(op, 1, Integer::sum);
+                if (n <= MAX_REPORTED) {
+                    failures.messages.add(String.format("%s%s %04x, %04x: got %04x %s, expected %04x %s (compared %s)",
+                            lazy ? "" : "(eager) ", op.name, tests.op1[i], tests.op2[i], result, flag_names(flags),
+                            expected, flag_names(expected_flags), flag_names(mask)));
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Jump conditions for 70-7F, from the manual
+     */
+    private static boolean jump_taken(int condition, int flags) {
+        boolean of = (flags & CPU.OF) != 0, sf = (flags & CPU.SF) != 0, zf = (flags & CPU.ZF) != 0;
+        boolean pf = (flags & CPU.PF) != 0, cf = (flags & CPU.CF) != 0;
+        boolean taken;
+        switch (condition >> 1) {
+            case 0: // JO
+                taken = of;
+                break;
+            case 1: // JC
+                taken = cf;
+                break;
+            case 2: // JZ
+                taken = zf;
+                break;
+            case 3: // JBE
+                taken = cf || zf;
+                break;
+            case 4: // JS
+                taken = sf;
+                break;
+            case 5: // JP
+                taken = pf;
+                break;
+            case 6: // JL
+                taken = sf != of;
+                break;
+            default: // JLE
+                taken = zf || sf != of;
+                break;
+        }
+        // Odd conditions are the opposite of the one before them
+        return taken != ((condition & 1) != 0);
+    }
+
+    /**
+     * Run Jcc +2 for each condition and each combination of OF, SF, ZF, PF
+     * and CF.
+     *
+     * @return What went wrong, empty if nothing did
+     */
+    private static List<String> check_jumps() {
+        List<String> failures = new ArrayList<>();
+        int[] flag_bits = {CPU.OF, CPU.SF, CPU.ZF, CPU.PF, CPU.CF};
+        CPU cpu = new CPU(1024 * 1024);
+        cpu.reset();
+        for (int condition = 0; condition < 16; condition++) {
+            for (int combination = 0; combination < 1 << flag_bits.length; combination++) {
+                int flags = 2;
+                for (int bit = 0; bit < flag_bits.length; bit++) {
+                    if ((combination & 1 << bit) != 0) {
+                        flags |= flag_bits[bit];
+                    }
+                }
+                cpu.write_byte(CODE_SEGMENT << 4, 0x70 + condition);
+                cpu.write_byte((CODE_SEGMENT << 4) + 1, 2);
+                cpu.cs = CODE_SEGMENT;
+                cpu.eip = 0;
+                cpu.halted = false;
+                cpu.set_eflags(flags);
+                cpu.run_for(1);
+                boolean expected = jump_taken(condition, flags);
+                if ((cpu.eip == 4) != expected) {
+                    failures.add(String.format("j%02x with %s: %s, expected %s", 0x70 + condition, flag_names(flags),
+                            cpu.eip == 4 ? "taken" : "not taken", expected ? "taken" : "not taken"));
+                }
+            }
+        }
+        return failures;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String file = args.length > 0 ? args[0] : "test-cpu/opcodes.out";
+        Tests tests = new Tests(Files.readAllLines(Paths.get(file)));
+
+        long start = System.nanoTime();
+        int workers = Runtime.getRuntime().availableProcessors();
+        int chunk = (tests.count + workers - 1) / workers;
+        List<Failures> results = IntStream.range(0, workers * 2).parallel()
+                .mapToObj(w -> run(tests, Math.min(w / 2 * chunk, tests.count),
+                Math.min((w / 2 + 1) * chunk, tests.count), (w & 1) == 0))
+                .collect(Collectors.toList());
+        long elapsed = System.nanoTime() - start;
+
+        Map<String, Integer> counts = new TreeMap<>();
+        int failed = 0;
+        for (Failures f : results) {
+            for (String message : f.messages) {
+                System.out.println(message);
+            }
+            for (Map.Entry<Op, Integer> e : f.counts.entrySet()) {
+                counts.merge(e.getKey().name, e.getValue(), Integer::sum);
+                failed += e.getValue();
+            }
+        }
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            System.out.printf("%-8s %d failed%n", e.getKey(), e.getValue());
+        }
+        System.out.printf("%d of %d passed in %.1f ms%n", tests.count * 2 - failed, tests.count * 2, elapsed / 1e6);
+
+        List<String> jumps = check_jumps();
+        for (String message : jumps) {
+            System.out.println(message);
+        }
+        System.out.printf("%d of %d jumps went the right way%n", 16 * 32 - jumps.size(), 16 * 32);
+        failed += jumps.size();
+        if (failed != 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -5,12 +5,9 @@
  */
 package dos.emulator;
 
-import dos.emulator.cpu.CPU;
-import dos.emulator.cpu.HLTException;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import javax.swing.JOptionPane;
 
 /**
  *
@@ -18,67 +15,51 @@ import javax.swing.JOptionPane;
  */
 public class DOSEmulator {
 
-    public static CPU cpu;
-    public static Screen screen;
-
     // TODO: Make this configurable
-    /**
-     * @param args the command line arguments
-     */
-    public static void main(String[] args) {
-        // TODO code application logic here
-        init();
-    }
-
-    private static void init() {
-        // Initialize VM
-        cpu = new CPU(1024 * 1024);
-        cpu.reset();
-
-        // Set up screen
-        screen = new Screen();
-
-        // Load BIOS binary
-        loadBiosBinary();
-
-        run();
-    }
-
     private static String[] options = {
         "data/test.bin",
         "data/bios.bin"
     };
 
-    private static void loadBiosBinary() {
-        int i = 0;
-        while (i < options.length) {
-            try {
-                byte[] b = Files.readAllBytes(Paths.get(options[i]));
-                int length = b.length;
-                int address = (1024 * 1024) - length;
-                for (int j = 0; j < length; j++) {
-                    cpu.write_byte(address + j, b[j]);
-                }
-                return;
-            } catch (IOException e) {
-                // OK... We couldn't find it. Ignore it and move on.
+    /**
+     * @param args the command line arguments. "-headless" runs without a
+     * window and prints the screen when the program halts, "-dump file.png"
+     * also saves it as an image. "-clock 4.77" runs at that many MHz instead
+     * of as fast as possible.
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException {
+        boolean headless = GraphicsEnvironment.isHeadless();
+        String dump = null;
+        long clock = Machine.CLOCK_AS_FAST_AS_POSSIBLE;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-headless")) {
+                headless = true;
+            } else if (args[i].equals("-dump") && i + 1 < args.length) {
+                dump = args[++i];
+            } else if (args[i].equals("-clock") && i + 1 < args.length) {
+                clock = Math.round(Double.parseDouble(args[++i]) * 1e6);
             }
-            i++;
         }
-        JOptionPane.showMessageDialog(null, "Cannot find BIOS binaries. Make sure a suitable IBM PC BIOS is in data/bios.bin");
-    }
 
-    public static void run() {
-        int cycles = 0;
-        try {
-            while (true) {
-                cpu.run();
-                if((cycles++ % 100) == 0){
-                    screen.update();
+        Machine machine = new Machine(headless);
+        if (!machine.load_bios(options)) {
+            machine.display.show_error("Cannot find BIOS binaries. Make sure a suitable IBM PC BIOS is in data/bios.bin");
+            return;
+        }
+        machine.set_clock(clock);
+        machine.run();
+
+        if (machine.display instanceof HeadlessDisplay) {
+            HeadlessDisplay display = (HeadlessDisplay) machine.display;
+            System.out.print(display.get_text());
+            if (dump != null) {
+                try {
+                    display.dump_png(new File(dump));
+                } catch (IOException e) {
+                    System.err.println("Cannot write " + dump + ": " + e.getMessage());
                 }
             }
-        } catch (HLTException e) {
-            screen.update();
         }
     }
 }
@@ -0,0 +1,28 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+/**
+ * Where the emulator's text output goes. Screen shows it in a window,
+ * HeadlessDisplay just keeps it in memory.
+ *
+ * @author jkim13
+ */
+public interface Display {
+
+    /**
+     * Called by the emulator between batches of instructions to bring the
+     * output up to date.
+     */
+    void update();
+
+    /**
+     * Tell the user that something went wrong.
+     *
+     * @param message
+     */
+    void show_error(String message);
+}
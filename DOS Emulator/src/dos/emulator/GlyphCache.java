@@ -0,0 +1,101 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+/**
+ * Ready-made 8x16 pixel tiles for (character, attribute) pairs, so that
+ * drawing a text cell is just copying 16 rows. Tiles are made the first time
+ * they are needed. Once there are max_tiles of them, old ones are thrown out
+ * using the clock algorithm.
+ *
+ * @author jkim13
+ */
+class GlyphCache {
+
+    final static int TILE_WIDTH = 8;
+    final static int TILE_HEIGHT = 16;
+
+    private final int[][] font;
+    private final int[] palette;
+
+    /**
+     * Indexed by character | attribute << 8. null if not cached.
+     */
+    private final int[][] tiles = new int[65536][];
+
+    /**
+     * Set when a tile is used, cleared when the clock hand passes over it.
+     */
+    private final boolean[] referenced = new boolean[65536];
+
+    /**
+     * Keys of the cached tiles, in the order the clock hand visits them
+     */
+    private final int[] resident;
+    private int count;
+    private int hand;
+
+    /**
+     * @param font 256 characters, 16 rows each. Bit 0 is the leftmost pixel.
+     * @param palette The 16 text mode colors
+     * @param max_tiles How many tiles to keep around at most
+     */
+    GlyphCache(int[][] font, int[] palette, int max_tiles) {
+        this.font = font;
+        this.palette = palette;
+        resident = new int[max_tiles];
+    }
+
+    /**
+     * Get the tile for a character. The tile must not be changed.
+     *
+     * @param ch
+     * @param attribute Foreground in the low 4 bits, background in the high 4
+     * @return TILE_WIDTH * TILE_HEIGHT pixels, row by row
+     */
+    int[] get(int ch, int attribute) {
+        int key = (ch & 0xFF) | (attribute & 0xFF) << 8;
+        int[] tile = tiles[key];
+        if (tile == null) {
+            tile = make_tile(key);
+        }
+        referenced[key] = true;
+        return tile;
+    }
+
+    private int[] make_tile(int key) {
+        int[] tile;
+        if (count < resident.length) {
+            tile = new int[TILE_WIDTH * TILE_HEIGHT];
+            resident[count++] = key;
+        } else {
+            // Go around until we find something that hasn't been used since
+            // the last time we were here
+            while (referenced[resident[hand]]) {
+                referenced[resident[hand]] = false;
+                hand = (hand + 1) % resident.length;
+            }
+            int old = resident[hand];
+            tile = tiles[old];
+            tiles[old] = null;
+            resident[hand] = key;
+            hand = (hand + 1) % resident.length;
+        }
+
+        int[] e = font[key & 0xFF];
+        int f = 0xFF000000 | palette[key >> 8 & 15];
+        int b = 0xFF000000 | palette[key >> 12 & 15];
+        int o = 0;
+        for (int i = 0; i < TILE_HEIGHT; i++) {
+            int v = e[i];
+            for (int j = 0; j < TILE_WIDTH; j++) {
+                tile[o++] = (v >> j & 1) == 1 ? f : b;
+            }
+        }
+        tiles[key] = tile;
+        return tile;
+    }
+}
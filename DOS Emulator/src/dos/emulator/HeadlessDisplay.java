@@ -0,0 +1,178 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+import dos.emulator.cpu.CPU;
+import dos.emulator.cpu.MemoryMap;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import javax.imageio.ImageIO;
+
+/**
+ * Display that doesn't need a window. Text memory is kept as it is written,
+ * and the pixels are only drawn when someone asks for a frame, so this costs
+ * almost nothing if nobody looks at it.
+ *
+ * @author jkim13
+ */
+public class HeadlessDisplay implements Display {
+
+    public final int rows, cols;
+
+    /**
+     * Characters and attributes, laid out like they are at 0xB8000
+     */
+    private final byte[] text;
+
+    /**
+     * Cells that have changed since the framebuffer was last drawn
+     */
+    private final BitSet dirty_cells;
+
+    /**
+     * ARGB pixels, or null until the first frame is asked for
+     */
+    private int[] framebuffer;
+
+    private GlyphCache glyphs;
+
+    public HeadlessDisplay(CPU cpu) {
+        this(cpu, 25, 80);
+    }
+
+    public HeadlessDisplay(CPU cpu, int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        text = new byte[rows * cols * 2];
+        dirty_cells = new BitSet(rows * cols);
+        for (int i = 0; i < (0x8000 / 4096); i++) {
+            cpu.add_memory_map(new MemoryMap() {
+                public void handler(int addr, int data) {
+                    handle_memory_map(addr, data);
+                }
+            }, i * 4096 + 0xB8000);
+        }
+    }
+
+    private void handle_memory_map(int addr, int data) {
+        int offset = addr - 0xB8000;
+        if (offset < text.length) {
+            text[offset] = (byte) data;
+            dirty_cells.set(offset >> 1);
+        }
+    }
+
+    @Override
+    public void update() {
+        // Nothing to do until someone asks for a frame
+    }
+
+    @Override
+    public void show_error(String message) {
+        System.err.println(message);
+    }
+
+    public int get_width() {
+        return cols * GlyphCache.TILE_WIDTH;
+    }
+
+    public int get_height() {
+        return rows * GlyphCache.TILE_HEIGHT;
+    }
+
+    /**
+     * Get the character and attribute bytes of the text page.
+     *
+     * @return
+     */
+    public byte[] get_text_memory() {
+        return text.clone();
+    }
+
+    /**
+     * Get the text on the screen, one line per row. Trailing spaces are
+     * taken off.
+     *
+     * @return
+     */
+    public String get_text() {
+        StringBuilder sb = new StringBuilder();
+        for (int y = 0; y < rows; y++) {
+            int start = sb.length();
+            for (int x = 0; x < cols; x++) {
+                int ch = text[(y * cols + x) << 1] & 0xFF;
+                sb.append(ch == 0 ? ' ' : (char) ch);
+            }
+            int end = sb.length();
+            while (end > start && sb.charAt(end - 1) == ' ') {
+                end--;
+            }
+            sb.setLength(end);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Draw everything that has changed and return the pixels. The array is
+     * reused for the next frame.
+     *
+     * @return get_width() * get_height() ARGB pixels, row by row
+     */
+    public int[] get_framebuffer() {
+        if (framebuffer == null) {
+            framebuffer = new int[get_width() * get_height()];
+            glyphs = new GlyphCache(TextMode.FONT, TextMode.PALETTE, 1024);
+            dirty_cells.set(0, rows * cols);
+        }
+        int width = get_width();
+        for (int chnum = dirty_cells.nextSetBit(0); chnum >= 0; chnum = dirty_cells.nextSetBit(chnum + 1)) {
+            int x = chnum % cols, y = chnum / cols;
+            int[] tile = glyphs.get(text[chnum << 1], text[(chnum << 1) + 1]);
+            int o = (y * GlyphCache.TILE_HEIGHT) * width + x * GlyphCache.TILE_WIDTH;
+            for (int i = 0; i < GlyphCache.TILE_HEIGHT; i++) {
+                System.arraycopy(tile, i * GlyphCache.TILE_WIDTH, framebuffer, o, GlyphCache.TILE_WIDTH);
+                o += width;
+            }
+        }
+        dirty_cells.clear();
+        return framebuffer;
+    }
+
+    /**
+     * Save the current frame as a PNG.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void dump_png(File file) throws IOException {
+        int[] pixels = get_framebuffer();
+        BufferedImage image = new BufferedImage(get_width(), get_height(), BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, get_width(), get_height(), pixels, 0, get_width());
+        ImageIO.write(image, "png", file);
+    }
+
+    /**
+     * Save the current frame as raw pixels: one big endian ARGB int per pixel,
+     * row by row, with no header.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void dump_raw(File file) throws IOException {
+        int[] pixels = get_framebuffer();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (int pixel : pixels) {
+                out.writeInt(pixel);
+            }
+        }
+    }
+}
@@ -5,23 +5,98 @@
  */
 package dos.emulator;
 
+import java.util.Arrays;
+
 /**
+ * I/O ports of one machine. Devices register an IOHandler for the ports they
+ * own. Every other port reads 0xFF and ignores writes, like an empty bus.
  *
  * @author jkim13
  */
 public class IO {
-    public static void write_port(int port, int value){
-        switch(port){
-            // Write your code here
-            default:
-                throw new IllegalStateException("Unknown port write!");
+
+    /**
+     * How many times a port with no device was read or written. Useful for
+     * finding out what a BIOS is looking for.
+     */
+    public long unknown_reads, unknown_writes;
+
+    /**
+     * Handles ports that no device has claimed
+     */
+    private final IOHandler unknown = new IOHandler() {
+        @Override
+        public int read_port(int port) {
+            unknown_reads++;
+            return 0xFF;
         }
+
+        @Override
+        public void write_port(int port, int value) {
+            unknown_writes++;
+        }
+    };
+
+    /**
+     * One handler for every port
+     */
+    private final IOHandler[] handlers = new IOHandler[0x10000];
+
+    public IO() {
+        Arrays.fill(handlers, unknown);
     }
-    public static int read_port(int port){
-        switch(port){
-            default:
-                throw new IllegalStateException("Unknown port read!");
+
+    /**
+     * Send ports [first, first + count) to a handler.
+     *
+     * @param handler
+     * @param first
+     * @param count
+     */
+    public void register(IOHandler handler, int first, int count) {
+        for (int i = 0; i < count; i++) {
+            handlers[(first + i) & 0xFFFF] = handler;
         }
     }
-}
 
+    /**
+     * Give ports [first, first + count) back to the empty bus.
+     *
+     * @param first
+     * @param count
+     */
+    public void unregister(int first, int count) {
+        register(unknown, first, count);
+    }
+
+    public void write_port(int port, int value) {
+        port &= 0xFFFF;
+        handlers[port].write_port(port, value & 0xFF);
+    }
+
+    public int read_port(int port) {
+        port &= 0xFFFF;
+        return handlers[port].read_port(port) & 0xFF;
+    }
+
+    public void write_port16(int port, int value) {
+        port &= 0xFFFF;
+        IOHandler handler = handlers[port];
+        if (handler == handlers[(port + 1) & 0xFFFF]) {
+            handler.write_port16(port, value & 0xFFFF);
+        } else {
+            write_port(port, value);
+            write_port(port + 1, value >> 8);
+        }
+    }
+
+    public int read_port16(int port) {
+        port &= 0xFFFF;
+        IOHandler handler = handlers[port];
+        if (handler == handlers[(port + 1) & 0xFFFF]) {
+            return handler.read_port16(port) & 0xFFFF;
+        } else {
+            return read_port(port) | read_port(port + 1) << 8;
+        }
+    }
+}
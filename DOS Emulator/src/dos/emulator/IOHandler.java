@@ -0,0 +1,55 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+/**
+ * A device's I/O ports. Register it with IO.register. A device that only
+ * uses one direction still has to say what the other one does; most return
+ * 0xFF and ignore writes, like a port with nothing on it.
+ *
+ * @author jkim13
+ */
+public abstract class IOHandler {
+
+    /**
+     * Read a byte from a port.
+     *
+     * @param port
+     * @return
+     */
+    public abstract int read_port(int port);
+
+    /**
+     * Write a byte to a port.
+     *
+     * @param port
+     * @param value
+     */
+    public abstract void write_port(int port, int value);
+
+    /**
+     * Read a word from port and port + 1. Override this if the device has
+     * real 16-bit ports.
+     *
+     * @param port
+     * @return
+     */
+    public int read_port16(int port) {
+        return (read_port(port) & 0xFF) | (read_port((port + 1) & 0xFFFF) & 0xFF) << 8;
+    }
+
+    /**
+     * Write a word to port and port + 1. Override this if the device has real
+     * 16-bit ports.
+     *
+     * @param port
+     * @param value
+     */
+    public void write_port16(int port, int value) {
+        write_port(port, value & 0xFF);
+        write_port((port + 1) & 0xFFFF, value >> 8 & 0xFF);
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+/**
+ * Something devices can raise interrupt requests on, and the CPU takes
+ * interrupts from.
+ *
+ * @author jkim13
+ */
+public interface InterruptController {
+
+    /**
+     * Signal an interrupt request (a rising edge on the IRQ line).
+     *
+     * @param irq 0-7
+     */
+    void raise_irq(int irq);
+
+    /**
+     * Called by the CPU when it is ready to take an interrupt.
+     *
+     * @return The interrupt vector, or -1 if there is nothing to take after
+     * all.
+     */
+    int acknowledge();
+}
@@ -0,0 +1,285 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+import dos.emulator.cpu.CPU;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * One emulated PC: CPU and memory, I/O ports, devices and display. Nothing in here is
+ * static, so a JVM can run as many of these as it wants.
+ *
+ * @author jkim13
+ */
+public class Machine {
+
+    public final CPU cpu;
+    public final IO io;
+    public final Scheduler scheduler;
+    public final PIC pic;
+    public final PIT pit;
+    public final Display display;
+
+    /**
+     * How many instructions run() runs in one go
+     */
+    public static final int INSTRUCTIONS_PER_SLICE = 10000;
+
+    /**
+     * Clock speeds for set_clock()
+     */
+    public static final long CLOCK_AS_FAST_AS_POSSIBLE = 0;
+    public static final long CLOCK_4_77_MHZ = 4772727;
+    public static final long CLOCK_8_MHZ = 8000000;
+
+    /**
+     * Display updates per second of emulated time
+     */
+    public static final int FRAMES_PER_SECOND = 60;
+
+    /**
+     * Cycles between display updates, from the clock speed
+     */
+    private long cycles_per_frame = CLOCK_4_77_MHZ / FRAMES_PER_SECOND;
+
+    private final int frame_event;
+
+    /**
+     * We only sleep once we are this far ahead of real time, so that the
+     * sleeps are long enough for the OS to get right.
+     */
+    private static final long THROTTLE_NANOS = 10_000_000;
+
+    /**
+     * If we fall this far behind (the host was busy, or a debugger stopped
+     * us), start counting again from now instead of running flat out to catch
+     * up.
+     */
+    private static final long MAX_LAG_NANOS = 250_000_000;
+
+    /**
+     * "SDOS", at the start of every snapshot
+     */
+    private static final int SNAPSHOT_MAGIC = 0x53444F53;
+    /**
+     * Bump this whenever anything in the snapshot format changes
+     */
+    public static final int SNAPSHOT_VERSION = 4;
+
+    private long clock_hz = CLOCK_AS_FAST_AS_POSSIBLE;
+    private double nanos_per_cycle;
+    /**
+     * Real and emulated time when we started counting
+     */
+    private long base_nanos, base_cycles;
+
+    /**
+     * Create a machine without a window.
+     */
+    public Machine() {
+        this(true);
+    }
+
+    /**
+     * @param headless If true, use a HeadlessDisplay. Otherwise open a Screen.
+     */
+    public Machine(boolean headless) {
+        io = new IO();
+        cpu = new CPU(1024 * 1024, io);
+        cpu.reset();
+        scheduler = new Scheduler(cpu);
+
+        pic = new PIC(cpu);
+        pic.attach(io);
+        pit = new PIT(cpu, pic, scheduler);
+        pit.attach(io);
+
+        // Screen is only loaded if we need it, so that headless machines
+        // never touch Swing.
+        if (headless) {
+            display = new HeadlessDisplay(cpu);
+        } else {
+            display = new Screen(cpu);
+        }
+        frame_event = scheduler.add(this::frame);
+        scheduler.schedule(frame_event, cycles_per_frame);
+    }
+
+    private void frame() {
+        display.update();
+        scheduler.schedule(frame_event, cycles_per_frame);
+    }
+
+    /**
+     * Put a BIOS image at the top of the first megabyte and make it read
+     * only.
+     *
+     * @param b
+     */
+    public void load_bios(byte[] b) {
+        int length = b.length;
+        int address = (1024 * 1024) - length;
+        for (int j = 0; j < length; j++) {
+            cpu.write_byte(address + j, b[j]);
+        }
+        cpu.add_rom(address, length);
+    }
+
+    /**
+     * Load the first of these files that exists as the BIOS.
+     *
+     * @param options
+     * @return false if none of them could be read
+     */
+    public boolean load_bios(String... options) {
+        for (String option : options) {
+            try {
+                load_bios(Files.readAllBytes(Paths.get(option)));
+                return true;
+            } catch (IOException e) {
+                // OK... We couldn't find it. Ignore it and move on.
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lock emulated time to a clock speed, or run as fast as possible. The
+     * PIT and the display are timed from this too; as fast as possible times
+     * them as if it were 4.77 MHz.
+     *
+     * @param hz Cycles per second, or CLOCK_AS_FAST_AS_POSSIBLE
+     */
+    public void set_clock(long hz) {
+        clock_hz = hz;
+        nanos_per_cycle = hz == 0 ? 0 : 1e9 / hz;
+        base_nanos = System.nanoTime();
+        base_cycles = cpu.cycles;
+
+        long emulated_hz = hz == 0 ? CLOCK_4_77_MHZ : hz;
+        pit.set_clock(emulated_hz);
+        long frame = Math.max(emulated_hz / FRAMES_PER_SECOND, 1);
+        if (frame != cycles_per_frame) {
+            cycles_per_frame = frame;
+            scheduler.schedule(frame_event, cycles_per_frame);
+        }
+    }
+
+    public long get_clock() {
+        return clock_hz;
+    }
+
+    /**
+     * @return How many nanoseconds the machine should wait before running
+     * again to stay at its clock speed. 0 if it should run now.
+     */
+    public long get_throttle_delay() {
+        if (clock_hz == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long ahead = (long) ((cpu.cycles - base_cycles) * nanos_per_cycle) - (now - base_nanos);
+        if (ahead < -MAX_LAG_NANOS) {
+            base_nanos = now;
+            base_cycles = cpu.cycles;
+            return 0;
+        }
+        return ahead >= THROTTLE_NANOS ? ahead : 0;
+    }
+
+    public boolean is_halted() {
+        return cpu.halted;
+    }
+
+    /**
+     * Run up to count instructions. The display is updated once the CPU
+     * halts.
+     *
+     * @param count
+     * @return The number of instructions that were run
+     */
+    public int run_slice(int count) {
+        int done = cpu.run_for(count);
+        if (cpu.halted) {
+            display.update();
+        }
+        return done;
+    }
+
+    /**
+     * Save the state of the whole machine: the magic number and version,
+     * then the CPU and memory (CPU.save), the scheduler, the PIC and the PIT,
+     * all big endian. Text memory is part of memory.
+     *
+     * Only call this between slices, from the thread that runs the machine.
+     *
+     * @param out Not closed
+     * @throws IOException
+     */
+    public void save(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeInt(SNAPSHOT_VERSION);
+        cpu.save(data);
+        scheduler.save(data);
+        pic.save(data);
+        pit.save(data);
+        data.flush();
+    }
+
+    /**
+     * Load a snapshot made by save() into this machine. This doesn't build
+     * anything new: the machine has to be set up the same way as the one
+     * that was saved (same BIOS, same devices), and code that is the same in
+     * both keeps its decoded and compiled blocks. So boot one machine, save
+     * it, and restore that into as many machines as you want.
+     *
+     * @param in Read ahead of the snapshot, so it should only hold the
+     * snapshot
+     * @throws IOException If it isn't a snapshot, or is of another version
+     */
+    public void restore(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (data.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        int version = data.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Snapshot version " + version + ", expected " + SNAPSHOT_VERSION);
+        }
+        cpu.restore(data);
+        scheduler.restore(data);
+        pic.restore(data);
+        pit.restore(data);
+        // Time starts counting again from here
+        set_clock(clock_hz);
+        display.update();
+    }
+
+    /**
+     * Run until the CPU halts. If a clock speed is set, this sleeps whenever
+     * the machine gets ahead of real time.
+     *
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        while (!cpu.halted) {
+            run_slice(INSTRUCTIONS_PER_SLICE);
+            long delay = get_throttle_delay();
+            if (delay > 0) {
+                Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many machines on a fixed number of threads. Each machine runs for one
+ * slice of instructions at a time and then goes to the back of the queue, so
+ * a long running machine can't starve the others. Machines with a clock speed
+ * set are put back on the queue only once real time has caught up with them,
+ * so they don't hold on to a thread while they wait.
+ *
+ * @author jkim13
+ */
+public class MachinePool implements AutoCloseable {
+
+    private final ScheduledExecutorService executor;
+    private final int slice;
+
+    /**
+     * One thread per processor, 100000 instructions per slice.
+     */
+    public MachinePool() {
+        this(Runtime.getRuntime().availableProcessors(), 100000);
+    }
+
+    /**
+     * @param threads
+     * @param slice How many instructions a machine runs before the next one
+     * gets a turn
+     */
+    public MachinePool(int threads, int slice) {
+        this.slice = slice;
+        executor = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "machine-pool");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Start running a machine.
+     *
+     * @param machine
+     * @return Completes with the machine when it halts, or exceptionally if
+     * the CPU threw something.
+     */
+    public CompletableFuture<Machine> submit(Machine machine) {
+        CompletableFuture<Machine> done = new CompletableFuture<>();
+        executor.execute(() -> run_slice(machine, done));
+        return done;
+    }
+
+    private void run_slice(Machine machine, CompletableFuture<Machine> done) {
+        if (done.isDone()) {
+            return; // Cancelled
+        }
+        try {
+            machine.run_slice(slice);
+        } catch (RuntimeException | Error e) {
+            done.completeExceptionally(e);
+            return;
+        }
+        if (machine.is_halted()) {
+            done.complete(machine);
+        } else {
+            try {
+                long delay = machine.get_throttle_delay();
+                if (delay > 0) {
+                    executor.schedule(() -> run_slice(machine, done), delay, TimeUnit.NANOSECONDS);
+                } else {
+                    executor.execute(() -> run_slice(machine, done));
+                }
+            } catch (RejectedExecutionException e) {
+                done.completeExceptionally(e); // The pool was closed
+            }
+        }
+    }
+
+    /**
+     * Stop taking new slices. Machines that are still running are dropped.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
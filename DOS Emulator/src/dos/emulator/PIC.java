@@ -0,0 +1,218 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+import dos.emulator.cpu.CPU;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * 8259A programmable interrupt controller on ports 0x20 and 0x21. Only the
+ * single (master) controller of the PC/XT is emulated, with fixed priority
+ * (IRQ 0 highest).
+ *
+ * Any thread may call raise_irq. The request is put in a lock free mailbox
+ * and picked up by the CPU thread, which is the only one that touches the
+ * rest of the state.
+ *
+ * @author jkim13
+ */
+public class PIC extends IOHandler implements InterruptController {
+
+    private final CPU cpu;
+
+    /**
+     * IRQs raised since the CPU thread last looked, one bit each
+     */
+    private volatile int requests;
+    private static final VarHandle REQUESTS;
+
+    static {
+        try {
+            REQUESTS = MethodHandles.lookup().findVarHandle(PIC.class, "requests", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Interrupt request, in service and mask registers
+     */
+    private int irr, isr, imr;
+
+    private int vector_base = 8;
+
+    /**
+     * Which initialization word we expect next on port 0x21. 0 if we aren't
+     * initializing.
+     */
+    private int init_step;
+    private boolean single, needs_icw4, auto_eoi;
+
+    /**
+     * If set, reading port 0x20 gives the ISR, otherwise the IRR
+     */
+    private boolean read_isr;
+
+    public PIC(CPU cpu) {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Claim ports 0x20-0x21 and start sending interrupts to the CPU.
+     *
+     * @param io
+     */
+    public void attach(IO io) {
+        io.register(this, 0x20, 2);
+        cpu.pic = this;
+    }
+
+    @Override
+    public void raise_irq(int irq) {
+        REQUESTS.getAndBitwiseOr(this, 1 << irq);
+        cpu.interrupt_pending = 1;
+    }
+
+    /**
+     * Pick up IRQs from other threads and tell the CPU if there is anything
+     * it should take.
+     */
+    private void update_pending() {
+        // Clear first, so that anything raised after we look at requests
+        // sets it again
+        cpu.interrupt_pending = 0;
+        irr |= (int) REQUESTS.getAndSet(this, 0);
+        if (next_irq() >= 0) {
+            cpu.interrupt_pending = 1;
+        }
+    }
+
+    /**
+     * @return The IRQ that would be sent to the CPU now, or -1
+     */
+    private int next_irq() {
+        int ready = irr & ~imr;
+        if (ready == 0) {
+            return -1;
+        }
+        int irq = Integer.numberOfTrailingZeros(ready);
+        // Has to be more important than whatever is being serviced
+        if (isr != 0 && Integer.numberOfTrailingZeros(isr) <= irq) {
+            return -1;
+        }
+        return irq;
+    }
+
+    @Override
+    public int acknowledge() {
+        update_pending();
+        int irq = next_irq();
+        if (irq < 0) {
+            return -1;
+        }
+        irr &= ~(1 << irq);
+        if (!auto_eoi) {
+            isr |= 1 << irq;
+        }
+        update_pending();
+        return vector_base + irq;
+    }
+
+    /**
+     * Write the registers and initialization state. IRQs that other threads
+     * raised but the CPU hasn't picked up yet are saved as requested.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void save(DataOutputStream out) throws IOException {
+        out.writeByte(irr | requests);
+        out.writeByte(isr);
+        out.writeByte(imr);
+        out.writeByte(vector_base);
+        out.writeByte(init_step);
+        out.writeBoolean(single);
+        out.writeBoolean(needs_icw4);
+        out.writeBoolean(auto_eoi);
+        out.writeBoolean(read_isr);
+    }
+
+    public void restore(DataInputStream in) throws IOException {
+        REQUESTS.getAndSet(this, 0);
+        irr = in.readUnsignedByte();
+        isr = in.readUnsignedByte();
+        imr = in.readUnsignedByte();
+        vector_base = in.readUnsignedByte();
+        init_step = in.readUnsignedByte();
+        single = in.readBoolean();
+        needs_icw4 = in.readBoolean();
+        auto_eoi = in.readBoolean();
+        read_isr = in.readBoolean();
+        update_pending();
+    }
+
+    @Override
+    public void write_port(int port, int value) {
+        if ((port & 1) == 0) {
+            if ((value & 0x10) != 0) { // ICW1
+                single = (value & 2) != 0;
+                needs_icw4 = (value & 1) != 0;
+                auto_eoi = false;
+                imr = 0;
+                isr = 0;
+                read_isr = false;
+                init_step = 2;
+            } else if ((value & 0x08) != 0) { // OCW3
+                if ((value & 2) != 0) {
+                    read_isr = (value & 1) != 0;
+                }
+            } else { // OCW2
+                switch (value >> 5) {
+                    case 1: // Non-specific EOI
+                    case 5: // Rotate on non-specific EOI
+                        isr &= isr - 1; // Clear the highest priority bit
+                        break;
+                    case 3: // Specific EOI
+                    case 7: // Rotate on specific EOI
+                        isr &= ~(1 << (value & 7));
+                        break;
+                }
+            }
+        } else {
+            switch (init_step) {
+                case 2:
+                    vector_base = value & 0xF8;
+                    init_step = !single ? 3 : needs_icw4 ? 4 : 0;
+                    break;
+                case 3:
+                    // Cascading isn't emulated
+                    init_step = needs_icw4 ? 4 : 0;
+                    break;
+                case 4:
+                    auto_eoi = (value & 2) != 0;
+                    init_step = 0;
+                    break;
+                default: // OCW1
+                    imr = value;
+                    break;
+            }
+        }
+        update_pending();
+    }
+
+    @Override
+    public int read_port(int port) {
+        update_pending();
+        if ((port & 1) == 0) {
+            return read_isr ? isr : irr;
+        }
+        return imr;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+import dos.emulator.cpu.CPU;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 8253/8254 programmable interval timer on ports 0x40-0x43.
+ *
+ * Nothing here runs on its own. The counters are worked out from the CPU's
+ * cycle count whenever they are read, and the next time channel 0 reaches
+ * zero is put on the scheduler, so IRQ 0 is raised at the first instruction
+ * boundary after it happens.
+ *
+ * @author jkim13
+ */
+public class PIT extends IOHandler {
+
+    /**
+     * The PIT runs at 1.193182 MHz whatever the CPU clock is
+     */
+    public static final long TICKS_PER_SECOND = 1193182;
+
+    private static final int ACCESS_LATCH = 0;
+    private static final int ACCESS_LOW = 1;
+    private static final int ACCESS_HIGH = 2;
+    private static final int ACCESS_BOTH = 3;
+
+    private class Channel {
+
+        int mode;
+        int access = ACCESS_BOTH;
+        /**
+         * Count loaded when the counter starts or wraps. 0 means 0x10000.
+         */
+        int reload = 0x10000;
+        /**
+         * Cycle count when the counter was loaded. -1 if no count has been
+         * written since the mode was set.
+         */
+        long start = -1;
+        /**
+         * Low byte written when in ACCESS_BOTH mode, or -1
+         */
+        int low_byte = -1;
+        /**
+         * True if the next ACCESS_BOTH read returns the high byte
+         */
+        boolean read_high;
+        /**
+         * Latched count, or -1 if nothing is latched
+         */
+        int latch = -1;
+
+        int get_count() {
+            if (start < 0) {
+                return 0;
+            }
+            long ticks = ticks_in(cpu.cycles - start);
+            switch (mode) {
+                case 2:
+                case 3:
+                    return (int) (reload - ticks % reload) & 0xFFFF;
+                default:
+                    // One shot modes keep counting down past 0
+                    return (int) (reload - ticks) & 0xFFFF;
+            }
+        }
+
+        boolean is_periodic() {
+            return mode == 2 || mode == 3;
+        }
+    }
+
+    private final CPU cpu;
+    private final InterruptController pic;
+    private final Scheduler scheduler;
+    private final int event;
+    private final Channel[] channels = {new Channel(), new Channel(), new Channel()};
+
+    /**
+     * CPU cycles per PIT tick, in 16.16 fixed point. Exactly 4 at 4.77 MHz,
+     * but not a whole number at most other clock speeds.
+     */
+    private long cycles_per_tick = 4 << 16;
+
+    /**
+     * Cycle count when channel 0 next reaches zero, or Long.MAX_VALUE
+     */
+    private long next_irq = Long.MAX_VALUE;
+
+    public PIT(CPU cpu, InterruptController pic, Scheduler scheduler) {
+        this.cpu = cpu;
+        this.pic = pic;
+        this.scheduler = scheduler;
+        event = scheduler.add(this::on_event);
+    }
+
+    /**
+     * Set how fast the CPU runs, so that the counters still tick at 1.193182
+     * MHz. Counters that are running keep their current count, and the next
+     * IRQ 0 is moved to match.
+     *
+     * @param hz CPU cycles per second
+     */
+    public void set_clock(long hz) {
+        long fp = ((hz << 16) + TICKS_PER_SECOND / 2) / TICKS_PER_SECOND;
+        if (fp == cycles_per_tick) {
+            return;
+        }
+        long[] ticks = new long[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i].start >= 0) {
+                ticks[i] = ticks_in(cpu.cycles - channels[i].start);
+            }
+        }
+        cycles_per_tick = Math.max(fp, 1);
+        for (int i = 0; i < channels.length; i++) {
+            Channel c = channels[i];
+            if (c.start >= 0) {
+                c.start = cpu.cycles - cycles_for(ticks[i]);
+            }
+        }
+        if (next_irq != Long.MAX_VALUE) {
+            schedule(next_zero(channels[0]));
+        }
+    }
+
+    /**
+     * @param cycles
+     * @return Whole PIT ticks in that many CPU cycles
+     */
+    private long ticks_in(long cycles) {
+        // Split up so that cycles << 16 can't overflow
+        return (cycles / cycles_per_tick << 16) + ((cycles % cycles_per_tick) << 16) / cycles_per_tick;
+    }
+
+    /**
+     * @param ticks
+     * @return CPU cycles until that many PIT ticks have gone by
+     */
+    private long cycles_for(long ticks) {
+        return (ticks * cycles_per_tick + 0xFFFF) >> 16;
+    }
+
+    /**
+     * @param c A channel with a count loaded
+     * @return Cycle count when the counter next reaches zero after now. For
+     * one shot modes that is only once, which may already have happened.
+     */
+    private long next_zero(Channel c) {
+        if (!c.is_periodic()) {
+            return c.start + cycles_for(c.reload);
+        }
+        long periods = ticks_in(cpu.cycles - c.start) / c.reload + 1;
+        return c.start + cycles_for(periods * c.reload);
+    }
+
+    @Override
+    public void write_port(int port, int value) {
+        if (port == 0x43) {
+            write_control(value);
+            return;
+        }
+        Channel c = channels[port & 3];
+        switch (c.access) {
+            case ACCESS_LOW:
+                load(c, value);
+                break;
+            case ACCESS_HIGH:
+                load(c, value << 8);
+                break;
+            case ACCESS_BOTH:
+                if (c.low_byte < 0) {
+                    c.low_byte = value;
+                } else {
+                    load(c, c.low_byte | value << 8);
+                    c.low_byte = -1;
+                }
+                break;
+        }
+    }
+
+    private void write_control(int value) {
+        int id = value >> 6;
+        if (id == 3) {
+            return; // 8254 read back command. Not supported.
+        }
+        Channel c = channels[id];
+        int access = value >> 4 & 3;
+        if (access == ACCESS_LATCH) {
+            if (c.latch < 0) {
+                c.latch = c.get_count();
+            }
+            return;
+        }
+        c.access = access;
+        c.mode = value >> 1 & 7;
+        if (c.mode > 5) {
+            c.mode -= 4; // 6 and 7 are 2 and 3
+        }
+        // The counter stops until a new count is written
+        c.start = -1;
+        c.low_byte = -1;
+        c.read_high = false;
+        c.latch = -1;
+        if (id == 0) {
+            schedule(Long.MAX_VALUE);
+        }
+    }
+
+    private void load(Channel c, int count) {
+        c.reload = count == 0 ? 0x10000 : count;
+        c.start = cpu.cycles;
+        if (c == channels[0]) {
+            schedule(next_zero(c));
+        }
+    }
+
+    @Override
+    public int read_port(int port) {
+        if (port == 0x43) {
+            return 0xFF;
+        }
+        Channel c = channels[port & 3];
+        int count = c.latch >= 0 ? c.latch : c.get_count();
+        int result;
+        switch (c.access) {
+            case ACCESS_LOW:
+                result = count & 0xFF;
+                c.latch = -1;
+                break;
+            case ACCESS_HIGH:
+                result = count >> 8;
+                c.latch = -1;
+                break;
+            default:
+                if (c.read_high) {
+                    result = count >> 8;
+                    c.latch = -1;
+                } else {
+                    result = count & 0xFF;
+                }
+                c.read_high = !c.read_high;
+                break;
+        }
+        return result;
+    }
+
+    private void schedule(long cycle) {
+        next_irq = cycle;
+        if (cycle == Long.MAX_VALUE) {
+            scheduler.cancel(event);
+        } else {
+            scheduler.schedule_at(event, cycle);
+        }
+    }
+
+    /**
+     * Called by the scheduler when channel 0 reaches zero.
+     */
+    private void on_event() {
+        pic.raise_irq(0);
+        Channel c = channels[0];
+        if (c.is_periodic()) {
+            // Counted from when the count was loaded, so the rounding of
+            // cycles_per_tick doesn't add up. If we fell far behind (a long
+            // REP or JIT block) this skips the zeros we missed instead of
+            // raising a burst of interrupts to catch up.
+            schedule(next_zero(c));
+        } else {
+            schedule(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Write the state of each channel. When IRQ 0 is due is saved by the
+     * scheduler.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void save(DataOutputStream out) throws IOException {
+        for (Channel c : channels) {
+            out.writeByte(c.mode);
+            out.writeByte(c.access);
+            out.writeInt(c.reload);
+            out.writeLong(c.start);
+            out.writeShort(c.low_byte);
+            out.writeBoolean(c.read_high);
+            out.writeInt(c.latch);
+        }
+        out.writeLong(next_irq);
+        out.writeLong(cycles_per_tick);
+    }
+
+    public void restore(DataInputStream in) throws IOException {
+        for (Channel c : channels) {
+            c.mode = in.readUnsignedByte();
+            c.access = in.readUnsignedByte();
+            c.reload = in.readInt();
+            c.start = in.readLong();
+            c.low_byte = in.readShort();
+            c.read_high = in.readBoolean();
+            c.latch = in.readInt();
+        }
+        next_irq = in.readLong();
+        cycles_per_tick = in.readLong();
+    }
+
+    /**
+     * Claim ports 0x40-0x43.
+     *
+     * @param io
+     */
+    public void attach(IO io) {
+        io.register(this, 0x40, 4);
+    }
+}
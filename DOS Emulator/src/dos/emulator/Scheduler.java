@@ -0,0 +1,243 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator;
+
+import dos.emulator.cpu.CPU;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Calls devices back after some number of emulated cycles.
+ *
+ * Devices register a callback once with add() and get a number for it. After
+ * that, scheduling, rescheduling and cancelling never allocate. Pending
+ * events are kept in a binary min-heap of deadlines, and the earliest one is
+ * handed to the CPU as next_event, so the CPU only has to compare two longs
+ * to know if anything is due.
+ *
+ * @author jkim13
+ */
+public class Scheduler {
+
+    private final CPU cpu;
+
+    /**
+     * Callback for each event number
+     */
+    private Runnable[] callbacks = new Runnable[8];
+    private int event_count;
+
+    /**
+     * The heap. heap_deadlines[i] is when heap_events[i] is due.
+     */
+    private long[] heap_deadlines = new long[8];
+    private int[] heap_events = new int[8];
+    private int heap_size;
+
+    /**
+     * Where each event is in the heap, or -1 if it isn't scheduled
+     */
+    private int[] positions = new int[8];
+
+    public Scheduler(CPU cpu) {
+        this.cpu = cpu;
+        cpu.event_handler = this::run_due;
+        cpu.next_event = Long.MAX_VALUE;
+    }
+
+    /**
+     * Register a callback. This is meant to be done once, when a device is
+     * set up.
+     *
+     * @param callback Called when the event is due. It may schedule any
+     * event again, including itself.
+     * @return The event number
+     */
+    public int add(Runnable callback) {
+        if (event_count == callbacks.length) {
+            int size = event_count * 2;
+            callbacks = Arrays.copyOf(callbacks, size);
+            positions = Arrays.copyOf(positions, size);
+            heap_deadlines = Arrays.copyOf(heap_deadlines, size);
+            heap_events = Arrays.copyOf(heap_events, size);
+        }
+        callbacks[event_count] = callback;
+        positions[event_count] = -1;
+        return event_count++;
+    }
+
+    /**
+     * Call an event back after some number of cycles. If it is already
+     * scheduled, it is moved.
+     *
+     * @param event
+     * @param cycles
+     */
+    public void schedule(int event, long cycles) {
+        schedule_at(event, cpu.cycles + cycles);
+    }
+
+    /**
+     * Call an event back once the CPU's cycle count reaches a value. If it is
+     * already scheduled, it is moved.
+     *
+     * @param event
+     * @param cycle
+     */
+    public void schedule_at(int event, long cycle) {
+        int i = positions[event];
+        if (i < 0) {
+            i = heap_size++;
+            heap_events[i] = event;
+            positions[event] = i;
+            heap_deadlines[i] = cycle;
+            sift_up(i);
+        } else {
+            long old = heap_deadlines[i];
+            heap_deadlines[i] = cycle;
+            if (cycle < old) {
+                sift_up(i);
+            } else {
+                sift_down(i);
+            }
+        }
+        cpu.next_event = heap_deadlines[0];
+    }
+
+    /**
+     * Take an event off the schedule. Does nothing if it isn't on it.
+     *
+     * @param event
+     */
+    public void cancel(int event) {
+        int i = positions[event];
+        if (i < 0) {
+            return;
+        }
+        remove_at(i);
+        cpu.next_event = heap_size == 0 ? Long.MAX_VALUE : heap_deadlines[0];
+    }
+
+    public boolean is_scheduled(int event) {
+        return positions[event] >= 0;
+    }
+
+    /**
+     * @param event
+     * @return The cycle count the event is due at, or Long.MAX_VALUE
+     */
+    public long get_deadline(int event) {
+        int i = positions[event];
+        return i < 0 ? Long.MAX_VALUE : heap_deadlines[i];
+    }
+
+    /**
+     * Called by the CPU when next_event has been reached. Fires every event
+     * that is due, earliest first.
+     */
+    public void run_due() {
+        while (heap_size != 0 && heap_deadlines[0] <= cpu.cycles) {
+            int event = heap_events[0];
+            remove_at(0);
+            callbacks[event].run();
+        }
+        cpu.next_event = heap_size == 0 ? Long.MAX_VALUE : heap_deadlines[0];
+    }
+
+    /**
+     * Write when each event is due. The callbacks aren't saved, so restore
+     * only works on a scheduler that had the same events added in the same
+     * order.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void save(DataOutputStream out) throws IOException {
+        out.writeInt(event_count);
+        for (int event = 0; event < event_count; event++) {
+            out.writeLong(get_deadline(event));
+        }
+    }
+
+    public void restore(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count != event_count) {
+            throw new IOException("Snapshot has " + count + " events, this machine has " + event_count);
+        }
+        for (int event = 0; event < count; event++) {
+            long deadline = in.readLong();
+            if (deadline == Long.MAX_VALUE) {
+                cancel(event);
+            } else {
+                schedule_at(event, deadline);
+            }
+        }
+    }
+
+    private void remove_at(int i) {
+        positions[heap_events[i]] = -1;
+        heap_size--;
+        if (i == heap_size) {
+            return;
+        }
+        // Move the last one into the hole and put it where it belongs
+        long deadline = heap_deadlines[heap_size];
+        heap_deadlines[i] = deadline;
+        heap_events[i] = heap_events[heap_size];
+        positions[heap_events[i]] = i;
+        if (i > 0 && deadline < heap_deadlines[(i - 1) >> 1]) {
+            sift_up(i);
+        } else {
+            sift_down(i);
+        }
+    }
+
+    private void sift_up(int i) {
+        long deadline = heap_deadlines[i];
+        int event = heap_events[i];
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (heap_deadlines[parent] <= deadline) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        heap_deadlines[i] = deadline;
+        heap_events[i] = event;
+        positions[event] = i;
+    }
+
+    private void sift_down(int i) {
+        long deadline = heap_deadlines[i];
+        int event = heap_events[i];
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= heap_size) {
+                break;
+            }
+            if (child + 1 < heap_size && heap_deadlines[child + 1] < heap_deadlines[child]) {
+                child++;
+            }
+            if (heap_deadlines[child] >= deadline) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        heap_deadlines[i] = deadline;
+        heap_events[i] = event;
+        positions[event] = i;
+    }
+
+    private void move(int from, int to) {
+        heap_deadlines[to] = heap_deadlines[from];
+        heap_events[to] = heap_events[from];
+        positions[heap_events[to]] = to;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.cpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+
+/**
+ * Translates hot runs of instructions into JVM bytecode. Each run becomes a
+ * hidden class with a single straight-line run() method, which HotSpot can
+ * then compile like any other Java code.
+ *
+ * Only instructions that work on registers are translated (ALU, MOV, INC/DEC).
+ * They can not fault and do not touch memory, so there is nothing that can
+ * write to the code we are running or hit a MemoryMap. The first instruction
+ * we can not translate ends the run, and the interpreter takes over from
+ * there.
+ *
+ * A block doesn't check for device events or interrupts, so the CPU only runs
+ * it if it ends before next_event and the run_for/run_cycles limit. If it
+ * doesn't, the CPU interprets the same instructions one at a time instead.
+ *
+ * @author jkim13
+ */
+class BlockCompiler {
+
+    /**
+     * Runs shorter than this are not worth a class
+     */
+    private final static int MIN_LENGTH = 2;
+
+    private final static String CPU_CLASS = "dos/emulator/cpu/CPU";
+    private final static String BLOCK_CLASS = "dos/emulator/cpu/CompiledBlock";
+
+    // Bytecodes
+    private final static int ICONST_0 = 0x03;
+    private final static int BIPUSH = 0x10;
+    private final static int SIPUSH = 0x11;
+    private final static int LDC_W = 0x13;
+    private final static int ILOAD_2 = 0x1C;
+    private final static int ALOAD_0 = 0x2A;
+    private final static int ALOAD_1 = 0x2B;
+    private final static int ISTORE_2 = 0x3D;
+    private final static int POP = 0x57;
+    private final static int DUP = 0x59;
+    private final static int IADD = 0x60;
+    private final static int IAND = 0x7E;
+    private final static int RETURN = 0xB1;
+    private final static int GETFIELD = 0xB4;
+    private final static int PUTFIELD = 0xB5;
+    private final static int INVOKEVIRTUAL = 0xB6;
+    private final static int INVOKESPECIAL = 0xB7;
+
+    private final ByteArrayOutputStream pool_bytes = new ByteArrayOutputStream();
+    private final HashMap<String, Integer> pool_index = new HashMap<>();
+    private int pool_count = 1;
+
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+    /**
+     * Translate as many instructions as we can, starting at first. Returns
+     * null if it is not worth it.
+     *
+     * @param first
+     * @return
+     */
+    static CompiledBlock compile(DecodedOp first) {
+        return new BlockCompiler().compile_block(first);
+    }
+
+    private CompiledBlock compile_block(DecodedOp first) {
+        DecodedOp op = first, last = null;
+        int count = 0, length = 0;
+        long cycles = 0;
+        while (op != null && op.linear != -1 && translate(op)) {
+            last = op;
+            count++;
+            cycles += op.cycles;
+            length += op.length;
+            op = op.next;
+        }
+        if (count < MIN_LENGTH) {
+            return null;
+        }
+        // cpu.eip = (cpu.eip + length) & 0xFFFF;
+        emit(ALOAD_1);
+        emit(DUP);
+        emit_field(GETFIELD, "eip");
+        emit_int(length);
+        emit(IADD);
+        emit_int(0xFFFF);
+        emit(IAND);
+        emit_field(PUTFIELD, "eip");
+        emit(RETURN);
+
+        try {
+            byte[] bytes = class_file(code.toByteArray());
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            CompiledBlock block = (CompiledBlock) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+            block.last = last;
+            block.count = count;
+            block.cycles = cycles;
+            return block;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Could not load compiled block", t);
+        }
+    }
+
+    /**
+     * Emit code for one instruction. Has to do exactly what CPU.execute does.
+     * Nothing may be emitted for an instruction we end up not translating.
+     *
+     * @param op
+     * @return false if we do not know how to translate it
+     */
+    private boolean translate(DecodedOp op) {
+        if (op.sreg != -1 || op.rep != 0) {
+            return false;
+        }
+        int opcode = op.opcode;
+        int modrm = op.modrm;
+        if (opcode < 0x40 && (opcode & 7) < 6) { // ALU
+            // Memory operands aren't translated
+            if ((opcode & 4) == 0 && modrm < 0xC0) {
+                return false;
+            }
+            int opsz = 8 << (opcode & 1);
+            int opc = opcode >> 3;
+            int dest;
+            emit(ALOAD_1);
+            emit_int(opsz);
+            emit_int(opc);
+            switch (opcode >> 1 & 3) {
+                case 0: // r/m, r
+                    emit_get_reg(opsz, modrm & 7);
+                    emit_get_reg(opsz, modrm >> 3 & 7);
+                    dest = modrm & 7;
+                    break;
+                case 1: // r, r/m
+                    emit_get_reg(opsz, modrm >> 3 & 7);
+                    emit_get_reg(opsz, modrm & 7);
+                    dest = modrm >> 3 & 7;
+                    break;
+                default: // al, ib
+                    emit_get_reg(opsz, 0);
+                    emit_int(op.imm);
+                    dest = 0;
+                    break;
+            }
+            emit_method("run_arith", "(IIII)I");
+            if (opc == 7) {
+                emit(POP);
+            } else {
+                emit(ISTORE_2);
+                emit(ALOAD_1);
+                emit_int(dest);
+                emit(ILOAD_2);
+                emit_set_reg(opsz);
+            }
+            return true;
+        }
+        if (opcode >= 0x40 && opcode < 0x50) { // INC, DEC
+            emit(ALOAD_1);
+            emit_int(opcode & 7);
+            emit_method(opcode < 0x48 ? "inc_reg16" : "dec_reg16", "(I)V");
+            return true;
+        }
+        if (opcode >= 0x88 && opcode < 0x8C) { // MOV
+            if (modrm < 0xC0) {
+                return false;
+            }
+            int opsz = 8 << (opcode & 1);
+            boolean to_rm = (opcode & 2) == 0;
+            emit(ALOAD_1);
+            emit_int(to_rm ? modrm & 7 : modrm >> 3 & 7);
+            emit_get_reg(opsz, to_rm ? modrm >> 3 & 7 : modrm & 7);
+            emit_set_reg(opsz);
+            return true;
+        }
+        if (opcode >= 0xB0 && opcode < 0xC0) { // MOV reg, imm
+            emit(ALOAD_1);
+            emit_int(opcode & 7);
+            emit_int(op.imm);
+            emit_set_reg(opcode < 0xB8 ? 8 : 16);
+            return true;
+        }
+        return opcode == 0x90; // NOP
+    }
+
+    private void emit_get_reg(int size, int id) {
+        emit(ALOAD_1);
+        emit_int(id);
+        emit_method(size == 8 ? "get_reg8" : "get_reg16", "(I)I");
+    }
+
+    // Expects cpu, id, value on the stack
+    private void emit_set_reg(int size) {
+        emit_method(size == 8 ? "set_reg8" : "set_reg16", "(II)V");
+    }
+
+    private void emit(int b) {
+        code.write(b);
+    }
+
+    private void emit_u2(int v) {
+        code.write(v >> 8);
+        code.write(v);
+    }
+
+    private void emit_int(int v) {
+        if (v >= -1 && v <= 5) {
+            emit(ICONST_0 + v);
+        } else if (v >= -128 && v <= 127) {
+            emit(BIPUSH);
+            emit(v);
+        } else if (v >= -32768 && v <= 32767) {
+            emit(SIPUSH);
+            emit_u2(v);
+        } else {
+            emit(LDC_W);
+            emit_u2(constant_int(v));
+        }
+    }
+
+    private void emit_field(int bytecode, String name) {
+        emit(bytecode);
+        emit_u2(constant_ref(9, CPU_CLASS, name, "I"));
+    }
+
+    private void emit_method(String name, String type) {
+        emit(INVOKEVIRTUAL);
+        emit_u2(constant_ref(10, CPU_CLASS, name, type));
+    }
+
+    // Constant pool
+    private int constant(String key, byte[] entry) {
+        Integer index = pool_index.get(key);
+        if (index != null) {
+            return index;
+        }
+        pool_bytes.write(entry, 0, entry.length);
+        pool_index.put(key, pool_count);
+        return pool_count++;
+    }
+
+    private int constant_utf8(String s) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        try {
+            DataOutputStream d = new DataOutputStream(b);
+            d.writeByte(1);
+            d.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return constant("U" + s, b.toByteArray());
+    }
+
+    private int constant_int(int v) {
+        return constant("I" + v, new byte[]{3, (byte) (v >> 24), (byte) (v >> 16), (byte) (v >> 8), (byte) v});
+    }
+
+    private int constant_class(String name) {
+        int n = constant_utf8(name);
+        return constant("C" + name, new byte[]{7, (byte) (n >> 8), (byte) n});
+    }
+
+    private int constant_ref(int tag, String owner, String name, String type) {
+        int c = constant_class(owner);
+        int n = constant_utf8(name);
+        int t = constant_utf8(type);
+        int nt = constant("N" + name + type, new byte[]{12, (byte) (n >> 8), (byte) n, (byte) (t >> 8), (byte) t});
+        return constant("R" + owner + name + type, new byte[]{(byte) tag, (byte) (c >> 8), (byte) c, (byte) (nt >> 8), (byte) nt});
+    }
+
+    private byte[] class_file(byte[] run_code) throws IOException {
+        int this_class = constant_class(BLOCK_CLASS + "$JIT");
+        int super_class = constant_class(BLOCK_CLASS);
+        int super_init = constant_ref(10, BLOCK_CLASS, "<init>", "()V");
+        int init_name = constant_utf8("<init>");
+        int init_type = constant_utf8("()V");
+        int run_name = constant_utf8("run");
+        int run_type = constant_utf8("(L" + CPU_CLASS + ";)V");
+        int code_name = constant_utf8("Code");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(out);
+        d.writeInt(0xCAFEBABE);
+        d.writeShort(0);
+        d.writeShort(55); // Java 11. No branches, so no stack map frames needed
+        d.writeShort(pool_count);
+        d.write(pool_bytes.toByteArray());
+        d.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+        d.writeShort(this_class);
+        d.writeShort(super_class);
+        d.writeShort(0); // Interfaces
+        d.writeShort(0); // Fields
+        d.writeShort(2); // Methods
+
+        byte[] init_code = {ALOAD_0, (byte) INVOKESPECIAL, (byte) (super_init >> 8), (byte) super_init, (byte) RETURN};
+        write_method(d, 0x0001, init_name, init_type, code_name, 1, 1, init_code);
+        write_method(d, 0x0000, run_name, run_type, code_name, 8, 3, run_code);
+
+        d.writeShort(0); // Attributes
+        return out.toByteArray();
+    }
+
+    private void write_method(DataOutputStream d, int access, int name, int type, int code_name, int max_stack, int max_locals, byte[] bytecode) throws IOException {
+        d.writeShort(access);
+        d.writeShort(name);
+        d.writeShort(type);
+        d.writeShort(1); // Attributes
+        d.writeShort(code_name);
+        d.writeInt(12 + bytecode.length);
+        d.writeShort(max_stack);
+        d.writeShort(max_locals);
+        d.writeInt(bytecode.length);
+        d.write(bytecode);
+        d.writeShort(0); // Exception table
+        d.writeShort(0); // Attributes
+    }
+}
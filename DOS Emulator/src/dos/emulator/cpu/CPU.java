@@ -6,12 +6,23 @@
 package dos.emulator.cpu;
 
 import dos.emulator.IO;
+import dos.emulator.InterruptController;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 // TODO (bug fixes):
 //  - Make sure that callf is implemented correctly (doesn't use next_byte while updating cs/ip)
 //  - Check for missing returns
 //  - Make sure that rb/rw/wb/ww are not used when segment registers can be modified
-//  - Make sure that every case has either a return or a continue
+//  - Make sure that every case has a return
 //  - Look over string instructions
 // TODO (features):
 //  - 80186 opcodes
@@ -95,11 +106,95 @@ public class CPU {
     public FPU fpu;
 
     /**
-     * Holds memory mappings
+     * I/O ports that IN and OUT go to. These belong to whoever made the CPU
+     * (see Machine), and can't be swapped out afterwards.
+     */
+    public final IO io;
+
+    /**
+     * Memory is split into 4 KB pages, and each page has a type that decides
+     * what happens when it is read or written.
+     */
+    final static int PAGE_SHIFT = 12;
+    final static int PAGE_SIZE = 1 << PAGE_SHIFT;
+    final static int PAGE_MASK = PAGE_SIZE - 1;
+    final static int PAGES = 0x100000 >> PAGE_SHIFT;
+
+    /**
+     * Ordinary memory. Reads and writes go straight to ram[].
+     */
+    public final static int PAGE_RAM = 0;
+    /**
+     * Read only memory. Reads go to ram[], writes are dropped.
+     */
+    public final static int PAGE_ROM = 1;
+    /**
+     * Writes call the handler and then go to ram[], reads go to ram[]. This is
+     * what add_memory_map sets up.
+     */
+    public final static int PAGE_MMIO_WRITE = 2;
+    /**
+     * Reads and writes both call the handler. ram[] is not touched.
+     */
+    public final static int PAGE_MMIO = 3;
+
+    /**
+     * Type of each page
+     */
+    byte[] page_types;
+
+    /**
+     * Little endian views of ram[], so that a word or dword can be read or
+     * written with one access.
+     */
+    private final static VarHandle RAM_WORD = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private final static VarHandle RAM_DWORD = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private final static VarHandle RAM_QWORD = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Pages of ram[] that were written since their hash was last worked out.
+     * Every write to RAM sets the page's flag, page_hashes() clears them.
+     */
+    private final boolean[] dirty_pages = new boolean[PAGES];
+    private final long[] page_hashes = new long[PAGES];
+
+    /**
+     * Holds memory mappings for MMIO pages
      */
     MemoryMap[] memory_maps;
 
+    /**
+     * Decoded instructions
+     */
+    DecodeCache decode_cache;
+
+    /**
+     * The instruction we are running right now (or ran last)
+     */
+    private DecodedOp current_op;
+
+    /**
+     * Compile blocks that we jump to often into JVM bytecode. See
+     * BlockCompiler.
+     */
+    public boolean jit_enabled = true;
+    final static int JIT_THRESHOLD = 100;
+
+    /**
+     * A CPU with its own I/O ports, which nothing else is attached to.
+     *
+     * @param ramsize
+     */
     public CPU(int ramsize) {
+        this(ramsize, new IO());
+    }
+
+    /**
+     * @param ramsize
+     * @param io The I/O ports that the machine's devices are attached to
+     */
+    public CPU(int ramsize, IO io) {
+        this.io = io;
         registers = new int[8];
         size = 16;
 
@@ -111,27 +206,103 @@ public class CPU {
         }
         ram = new byte[ramsize];
 
-        memory_maps = new MemoryMap[256];
+        page_types = new byte[PAGES];
+        memory_maps = new MemoryMap[PAGES];
+        Arrays.fill(dirty_pages, true);
+        decode_cache = new DecodeCache();
 
         fpu = new FPU(this);
     }
 
     public void set_architecture(int cpu) {
         architecture = cpu;
+        cycle_table = CycleTable.get(cpu);
+        // Cached instructions have the old cycle counts
+        decode_cache.flush();
     }
 
     public int get_architecture() {
         return architecture;
     }
 
+    /**
+     * Call a.handler whenever the page containing address is written to. The
+     * data still ends up in RAM, so reads don't need a handler.
+     *
+     * @param a
+     * @param address
+     */
     public void add_memory_map(MemoryMap a, int address) {
-        memory_maps[address >> 12] = a;
+        set_page(address, PAGE_MMIO_WRITE, a);
+    }
+
+    /**
+     * Hand over all reads and writes to the page containing address to a. Use
+     * this for devices that need to see reads, or that return something other
+     * than what was written.
+     *
+     * @param a
+     * @param address
+     */
+    public void add_mmio(MemoryMap a, int address) {
+        set_page(address, PAGE_MMIO, a);
+    }
+
+    /**
+     * Make every page touching [address, address + length) read only. Load the
+     * ROM image before calling this, since write_byte will drop the writes
+     * afterwards.
+     *
+     * @param address
+     * @param length
+     */
+    public void add_rom(int address, int length) {
+        for (int page = address >> PAGE_SHIFT; page <= (address + length - 1) >> PAGE_SHIFT; page++) {
+            set_page(page << PAGE_SHIFT, PAGE_ROM, null);
+        }
+    }
+
+    /**
+     * Turn the page containing address back into ordinary RAM.
+     *
+     * @param address
+     */
+    public void remove_memory_map(int address) {
+        set_page(address, PAGE_RAM, null);
+    }
+
+    private void set_page(int address, int type, MemoryMap a) {
+        int page = (address & 0xFFFFF) >> PAGE_SHIFT;
+        page_types[page] = (byte) type;
+        memory_maps[page] = a;
+        // Whatever we decoded here might not be what reads return anymore
+        decode_cache.invalidate_page(page);
+        current_op = null;
     }
 
     private int seg_translation(int seg, int offset) {
         return (seg << 4) + (offset & 0xFFFF);
     }
 
+    private int get_sreg(int id) {
+        switch (id) {
+            case ES:
+                return es;
+            case CS:
+                return cs;
+            case SS:
+                return ss;
+            case DS:
+                return ds;
+            case FS:
+                return fs;
+            case GS:
+                return gs;
+            default:
+                throw new IllegalStateException("Unknown segment register\n");
+        }
+    }
+
     /**
      * Read next byte.
      *
@@ -152,6 +323,230 @@ public class CPU {
         return next_byte() | next_byte() << 8;
     }
 
+    // Instruction formats. The decoder uses these to figure out which bytes
+    // come after the opcode.
+    private final static int F_MODRM = 1; // ModR/M byte, maybe followed by a displacement
+    private final static int F_IMM8 = 2;
+    private final static int F_IMM16 = 4;
+    private final static int F_IMM16_16 = 8; // Far pointer (offset, then segment)
+    private final static int F_IMM16_8 = 16; // ENTER
+    private final static int F_GRP3 = 32; // F6/F7: Only TEST has an immediate
+    private final static int F_PREFIX = 64;
+    private final static int F_END = 128; // Can jump, so it ends a basic block
+
+    private final static int[] op_format = new int[256];
+
+    static {
+        for (int i = 0; i < 0x40; i++) {
+            switch (i & 7) {
+                case 0:
+                case 1:
+                case 2:
+                case 3:
+                    op_format[i] = F_MODRM;
+                    break;
+                case 4:
+                    op_format[i] = F_IMM8;
+                    break;
+                case 5:
+                    op_format[i] = F_IMM16;
+                    break;
+            }
+        }
+        op_format[0x0F] = F_END; // POP CS
+        op_format[0x26] = op_format[0x2E] = op_format[0x36] = op_format[0x3E] = F_PREFIX;
+        for (int i = 0x60; i < 0x80; i++) {
+            op_format[i] = F_IMM8 | F_END; // Jcc
+        }
+        op_format[0x80] = op_format[0x82] = op_format[0x83] = F_MODRM | F_IMM8;
+        op_format[0x81] = F_MODRM | F_IMM16;
+        for (int i = 0x84; i < 0x90; i++) {
+            op_format[i] = F_MODRM;
+        }
+        op_format[0x8E] |= F_END; // MOV sreg
+        op_format[0x9A] = F_IMM16_16 | F_END;
+        for (int i = 0xA0; i < 0xA4; i++) {
+            op_format[i] = F_IMM16;
+        }
+        op_format[0xA8] = F_IMM8;
+        op_format[0xA9] = F_IMM16;
+        for (int i = 0xB0; i < 0xB8; i++) {
+            op_format[i] = F_IMM8;
+            op_format[i + 8] = F_IMM16;
+        }
+        op_format[0xC0] = op_format[0xC2] = F_IMM16 | F_END;
+        op_format[0xC1] = op_format[0xC3] = F_END;
+        op_format[0xC4] = op_format[0xC5] = F_MODRM;
+        op_format[0xC6] = F_MODRM | F_IMM8;
+        op_format[0xC7] = F_MODRM | F_IMM16;
+        op_format[0xC8] = F_IMM16_8;
+        op_format[0xCA] = F_IMM16 | F_END;
+        op_format[0xCB] = op_format[0xCC] = op_format[0xCF] = F_END;
+        op_format[0xCD] = op_format[0xCE] = F_IMM8 | F_END;
+        for (int i = 0xD0; i < 0xD4; i++) {
+            op_format[i] = F_MODRM;
+        }
+        op_format[0xD4] = op_format[0xD5] = F_IMM8;
+        for (int i = 0xD8; i < 0xE0; i++) {
+            op_format[i] = F_MODRM; // FPU
+        }
+        for (int i = 0xE0; i < 0xE4; i++) {
+            op_format[i] = F_IMM8 | F_END; // LOOP, JCXZ
+        }
+        for (int i = 0xE4; i < 0xE8; i++) {
+            op_format[i] = F_IMM8; // IN, OUT
+        }
+        op_format[0xE8] = op_format[0xE9] = F_IMM16 | F_END;
+        op_format[0xEA] = F_IMM16_16 | F_END;
+        op_format[0xEB] = F_IMM8 | F_END;
+        for (int i = 0xF0; i < 0xF4; i++) {
+            op_format[i] = F_PREFIX;
+        }
+        op_format[0xF4] = F_END;
+        op_format[0xF6] = op_format[0xF7] = F_MODRM | F_GRP3;
+        op_format[0xFE] = F_MODRM;
+        op_format[0xFF] = F_MODRM | F_END;
+    }
+
+    /**
+     * Decode the instruction at cs:eip. This does not change eip.
+     *
+     * @return
+     */
+    private DecodedOp decode() {
+        DecodedOp op = new DecodedOp();
+        int start = eip;
+        op.linear = seg_translation(cs, eip) & 0xFFFFF;
+        int opcode;
+        while (true) {
+            opcode = next_byte();
+            if ((op_format[opcode] & F_PREFIX) == 0) {
+                break;
+            }
+            switch (opcode) {
+                case 0x26:
+                    op.sreg = ES;
+                    break;
+                case 0x2E:
+                    op.sreg = CS;
+                    break;
+                case 0x36:
+                    op.sreg = SS;
+                    break;
+                case 0x3E:
+                    op.sreg = DS;
+                    break;
+                case 0xF2:
+                    op.rep = REPNZ;
+                    break;
+                case 0xF3:
+                    op.rep = REPZ;
+                    break;
+                default: // F0, F1
+                    // LOCK. There is only one CPU on the bus, so nothing to do.
+                    break;
+            }
+        }
+        int format = op_format[opcode];
+        op.opcode = opcode;
+        if ((format & F_MODRM) != 0) {
+            int modrm = next_byte();
+            op.modrm = modrm;
+            switch (EA_DISP[modrm]) {
+                case 1:
+                    op.disp = (byte) next_byte();
+                    break;
+                case 2:
+                    op.disp = next_word();
+                    break;
+            }
+            if ((format & F_GRP3) != 0 && (modrm >> 3 & 6) == 0) { // TEST
+                format |= (opcode & 1) == 0 ? F_IMM8 : F_IMM16;
+            }
+        }
+        if ((format & F_IMM8) != 0) {
+            op.imm = next_byte();
+        }
+        if ((format & F_IMM16) != 0) {
+            op.imm = next_word();
+        }
+        if ((format & F_IMM16_16) != 0) {
+            op.imm = next_word();
+            op.imm2 = next_word();
+        }
+        if ((format & F_IMM16_8) != 0) {
+            op.imm = next_word();
+            op.imm2 = next_byte();
+        }
+        op.length = (eip - start) & 0xFFFF;
+        op.ends_block = (format & F_END) != 0;
+        cycle_table.cost(op, (format & F_MODRM) != 0);
+        eip = start;
+        return op;
+    }
+
+    /**
+     * Instructions that wrap around the end of a segment or cross a page can
+     * not go in the decode cache, because the same linear address could then
+     * decode to something different.
+     *
+     * @param op
+     * @param offset
+     * @return
+     */
+    private boolean cacheable(DecodedOp op, int offset) {
+        return (offset & 0xFFFF) + op.length <= 0x10000
+                && (op.linear & 0xFFF) + op.length <= 0x1000;
+    }
+
+    private final static int MAX_BLOCK_LENGTH = 64;
+
+    /**
+     * Decode the basic block that starts at cs:eip and put it in the decode
+     * cache. Returns the first instruction in the block.
+     *
+     * @return
+     */
+    private DecodedOp decode_block() {
+        int start = eip;
+        DecodedOp first = decode();
+        if (!cacheable(first, eip)) {
+            return first;
+        }
+        DecodedOp op = first;
+        decode_cache.put(op);
+        for (int i = 1; i < MAX_BLOCK_LENGTH && !op.ends_block; i++) {
+            int next_linear = op.linear + op.length;
+            if ((next_linear & 0xFFF) == 0) {
+                break; // Blocks stay inside one page
+            }
+            eip = (eip + op.length) & 0xFFFF;
+            DecodedOp next = decode_cache.get(next_linear);
+            if (next != null) {
+                op.next = next;
+                break;
+            }
+            next = decode();
+            if (!cacheable(next, eip)) {
+                break;
+            }
+            decode_cache.put(next);
+            op.next = next;
+            op = next;
+        }
+        eip = start;
+        return first;
+    }
+
+    /**
+     * Throw away all decoded instructions. This has to be called after
+     * changing ram[] directly instead of going through write_byte.
+     */
+    public void flush_decode_cache() {
+        decode_cache.flush();
+        current_op = null;
+    }
+
     /**
      * Segment register offset
      */
@@ -161,19 +556,30 @@ public class CPU {
      */
     private int rep = 0;
 
+    /**
+     * Most iterations a REP instruction runs before giving the rest of the
+     * emulator a turn. It is restarted from where it stopped afterwards, like
+     * when a real 8086 takes an interrupt in the middle of one.
+     */
+    public int rep_slice = 4096;
+
+    /**
+     * Linear address of the REP instruction that continue_rep() pointed IP
+     * back at, or -1. Its start up cost was paid by the first slice.
+     */
+    private int rep_resume = -1;
+
     // Internal functions to write a word/byte
     private void wb(int seg, int offset, int value) {
         write_byte(seg_translation(seg, offset), value);
     }
 
     private void ww(int seg, int offset, int value) {
-        if (architecture == 8086) { // We need to wrap around
+        if ((offset & 0xFFFF) == 0xFFFF && architecture == 8086) { // We need to wrap around
             write_byte(seg_translation(seg, offset), value);
             write_byte(seg_translation(seg, offset + 1), value >> 8);
         } else {
-            int phys = seg_translation(seg, offset);
-            write_byte(phys, value);
-            write_byte(phys + 1, value >> 8);
+            write_word(seg_translation(seg, offset), value);
         }
     }
 
@@ -183,82 +589,103 @@ public class CPU {
     }
 
     private int rw(int seg, int offset) {
-        if (architecture == 8086) {
-            return read_word(seg_translation(seg, offset));
+        if ((offset & 0xFFFF) == 0xFFFF && architecture == 8086) {
+            return read_byte(seg_translation(seg, offset)) | read_byte(seg_translation(seg, offset + 1)) << 8;
         } else {
-            int phys = seg_translation(seg, offset);
-            return read_word(phys);
+            return read_word(seg_translation(seg, offset));
         }
     }
 
-    private int $cseg;
+    /**
+     * Read the far pointer that a ModR/M memory operand points to.
+     *
+     * @param modrm
+     * @return The offset in the low 16 bits, and the segment in the high 16
+     */
+    private int read_far_pointer(int modrm) {
+        int offset = decode_modrm(modrm);
+        return rd(ea_segment, offset);
+    }
 
-    private int seg_translation_internal(int sreg, int addr) {
-        if (current_sreg != -1) {
-            sreg = current_sreg;
-            current_sreg = -1;
+    /**
+     * Read a far pointer. Both halves wrap around inside the segment.
+     *
+     * @param seg
+     * @param offset
+     * @return The offset in the low 16 bits, and the segment in the high 16
+     */
+    private int rd(int seg, int offset) {
+        if ((offset & 0xFFFF) > 0xFFFC) {
+            return rw(seg, offset) | rw(seg, offset + 2) << 16;
+        } else {
+            return read_dword(seg_translation(seg, offset));
         }
-        $cseg = sreg;
-        return addr;//seg_translation(sreg, addr);
     }
 
-    private int decode_modrm(int modrm) {
-        return decode_modrm(modrm, 0);
+    /**
+     * What each ModR/M byte addresses, worked out once: the base and index
+     * registers (-1 if there isn't one), the displacement size in bytes and
+     * the default segment (DS or SS). Only entries below 0xC0 are used.
+     */
+    private static final byte[] EA_BASE = new byte[256];
+    private static final byte[] EA_INDEX = new byte[256];
+    private static final byte[] EA_DISP = new byte[256];
+    private static final byte[] EA_SEGMENT = new byte[256];
+
+    static {
+        // r/m: BX+SI, BX+DI, BP+SI, BP+DI, SI, DI, BP, BX
+        int[] bases = {BX, BX, BP, BP, -1, -1, BP, BX};
+        int[] indexes = {SI, DI, SI, DI, SI, DI, -1, -1};
+        for (int modrm = 0; modrm < 0xC0; modrm++) {
+            int mod = modrm >> 6, rm = modrm & 7;
+            EA_BASE[modrm] = (byte) bases[rm];
+            EA_INDEX[modrm] = (byte) indexes[rm];
+            EA_DISP[modrm] = (byte) mod;
+            EA_SEGMENT[modrm] = (byte) (bases[rm] == BP ? SS : DS);
+            if (mod == 0 && rm == 6) { // disp16 on its own
+                EA_BASE[modrm] = -1;
+                EA_DISP[modrm] = 2;
+                EA_SEGMENT[modrm] = DS;
+            }
+        }
     }
 
-    private int decode_modrm(int modrm, int offset) {
-        switch (modrm & ~0x38) {
-            case 0:
-                return seg_translation_internal(ds, registers[BX] + registers[SI] + offset);
-            case 1:
-                return seg_translation_internal(ds, registers[BX] + registers[DI] + offset);
-            case 2:
-                return seg_translation_internal(ss, registers[BP] + registers[SI] + offset);
-            case 3:
-                return seg_translation_internal(ss, registers[BP] + registers[DI] + offset);
-            case 4:
-                return seg_translation_internal(ds, registers[SI] + offset);
-            case 5:
-                return seg_translation_internal(ds, registers[DI] + offset);
-            case 6:
-                return seg_translation_internal(ds, next_word() + offset);
-            case 7:
-                return seg_translation_internal(ds, registers[BX] + offset);
-            case 0x40:
-                return seg_translation_internal(ds, registers[BX] + registers[SI] + next_byte() + offset);
-            case 0x41:
-                return seg_translation_internal(ds, registers[BX] + registers[DI] + next_byte() + offset);
-            case 0x42:
-                return seg_translation_internal(ss, registers[BP] + registers[SI] + next_byte() + offset);
-            case 0x43:
-                return seg_translation_internal(ss, registers[BP] + registers[DI] + next_byte() + offset);
-            case 0x44:
-                return seg_translation_internal(ds, registers[SI] + next_byte() + offset);
-            case 0x45:
-                return seg_translation_internal(ds, registers[DI] + next_byte() + offset);
-            case 0x46:
-                return seg_translation_internal(ss, registers[BP] + next_byte() + offset);
-            case 0x47:
-                return seg_translation_internal(ds, registers[BX] + next_byte() + offset);
-            case 0x80:
-                return seg_translation_internal(ds, registers[BX] + registers[SI] + next_word() + offset);
-            case 0x81:
-                return seg_translation_internal(ds, registers[BX] + registers[DI] + next_word() + offset);
-            case 0x82:
-                return seg_translation_internal(ss, registers[BP] + registers[SI] + next_word() + offset);
-            case 0x83:
-                return seg_translation_internal(ss, registers[BP] + registers[DI] + next_word() + offset);
-            case 0x84:
-                return seg_translation_internal(ds, registers[SI] + next_word() + offset);
-            case 0x85:
-                return seg_translation_internal(ds, registers[DI] + next_word() + offset);
-            case 0x86:
-                return seg_translation_internal(ss, registers[BP] + next_word() + offset);
-            case 0x87:
-                return seg_translation_internal(ds, registers[BX] + next_word() + offset);
-            default:
-                throw new IllegalStateException("Unknown ModR/M value: " + Integer.toHexString(modrm & ~0x38));
+    /**
+     * Segment of the operand last found by decode_modrm
+     */
+    private int ea_segment;
+
+    /**
+     * Find the memory operand of a ModR/M byte. This has no side effects
+     * other than setting ea_segment, so it can be called as many times as
+     * needed.
+     *
+     * @param modrm
+     * @return The offset. The segment (after any override) is in ea_segment.
+     */
+    private int decode_modrm(int modrm) {
+        int offset = current_op.disp;
+        int base = EA_BASE[modrm];
+        if (base >= 0) {
+            offset += registers[base];
+        }
+        int index = EA_INDEX[modrm];
+        if (index >= 0) {
+            offset += registers[index];
+        }
+        if (current_sreg != -1) {
+            ea_segment = current_sreg;
+        } else {
+            ea_segment = EA_SEGMENT[modrm] == SS ? ss : ds;
         }
+        return offset & 0xFFFF;
+    }
+
+    /**
+     * @return The segment for memory operands that default to DS
+     */
+    private int data_segment() {
+        return current_sreg != -1 ? current_sreg : ds;
     }
 
     /**
@@ -268,7 +695,11 @@ public class CPU {
      * @return
      */
     public int read_byte(int addr) {
-        return ram[addr & 0xFFFFF] & 0xFF;
+        addr &= 0xFFFFF;
+        if (page_types[addr >> PAGE_SHIFT] == PAGE_MMIO) {
+            return memory_maps[addr >> PAGE_SHIFT].read_handler(addr) & 0xFF;
+        }
+        return ram[addr] & 0xFF;
     }
 
     /**
@@ -278,9 +709,27 @@ public class CPU {
      * @return
      */
     public int read_word(int addr) {
+        addr &= 0xFFFFF;
+        if ((addr & PAGE_MASK) != PAGE_MASK && page_types[addr >> PAGE_SHIFT] != PAGE_MMIO) {
+            return (short) RAM_WORD.get(ram, addr) & 0xFFFF;
+        }
         return read_byte(addr) | read_byte(addr + 1) << 8;
     }
 
+    /**
+     * Read a dword from memory.
+     *
+     * @param addr
+     * @return
+     */
+    public int read_dword(int addr) {
+        addr &= 0xFFFFF;
+        if ((addr & PAGE_MASK) <= PAGE_SIZE - 4 && page_types[addr >> PAGE_SHIFT] != PAGE_MMIO) {
+            return (int) RAM_DWORD.get(ram, addr);
+        }
+        return read_word(addr) | read_word(addr + 2) << 16;
+    }
+
     /**
      * Write byte to memory
      *
@@ -288,10 +737,23 @@ public class CPU {
      * @param value
      */
     public void write_byte(int addr, int value) {
-        if (memory_maps[addr >> 12] != null) {
-            memory_maps[addr >> 12].handler(addr, value);
+        addr &= 0xFFFFF;
+        int page = addr >> PAGE_SHIFT;
+        switch (page_types[page]) {
+            case PAGE_ROM:
+                return;
+            case PAGE_MMIO:
+                memory_maps[page].handler(addr, value & 0xFF);
+                return;
+            case PAGE_MMIO_WRITE:
+                memory_maps[page].handler(addr, value & 0xFF);
+                break;
+        }
+        if (decode_cache.code_pages[page]) {
+            decode_cache.write(addr);
         }
-        ram[addr & 0xFFFFF] = (byte) (value & 0xFF);
+        dirty_pages[page] = true;
+        ram[addr] = (byte) value;
     }
 
     /**
@@ -301,10 +763,76 @@ public class CPU {
      * @param value
      */
     public void write_word(int addr, int value) {
+        addr &= 0xFFFFF;
+        int page = addr >> PAGE_SHIFT;
+        if ((addr & PAGE_MASK) != PAGE_MASK && page_types[page] == PAGE_RAM && !decode_cache.code_pages[page]) {
+            dirty_pages[page] = true;
+            RAM_WORD.set(ram, addr, (short) value);
+            return;
+        }
         write_byte(addr, value & 0xFF);
         write_byte(addr + 1, value >> 8 & 0xFF);
     }
 
+    /**
+     * Write dword to memory
+     *
+     * @param addr
+     * @param value
+     */
+    public void write_dword(int addr, int value) {
+        addr &= 0xFFFFF;
+        int page = addr >> PAGE_SHIFT;
+        if ((addr & PAGE_MASK) <= PAGE_SIZE - 4 && page_types[page] == PAGE_RAM && !decode_cache.code_pages[page]) {
+            dirty_pages[page] = true;
+            RAM_DWORD.set(ram, addr, value);
+            return;
+        }
+        write_word(addr, value & 0xFFFF);
+        write_word(addr + 2, value >>> 16);
+    }
+
+    /**
+     * Tell the CPU that [addr, addr + length) of ram[] changed. Only needed
+     * by code that writes to ram[] directly instead of using write_byte.
+     *
+     * @param addr
+     * @param length
+     */
+    public void mark_dirty(int addr, int length) {
+        for (int page = addr >> PAGE_SHIFT; page <= (addr + length - 1) >> PAGE_SHIFT; page++) {
+            dirty_pages[page] = true;
+        }
+    }
+
+    private long hash_page(int page) {
+        long hash = page;
+        int start = page << PAGE_SHIFT;
+        for (int i = start; i < start + PAGE_SIZE; i += 8) {
+            hash = (hash ^ (long) RAM_QWORD.get(ram, i)) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 32;
+        }
+        return hash;
+    }
+
+    /**
+     * A 64-bit hash of each 4K page of the first megabyte. Only pages that
+     * were written since the last call are hashed again, so this is cheap to
+     * call often. Two CPUs with the same hashes almost certainly have the
+     * same memory.
+     *
+     * @return The hashes, one per page. Don't change them.
+     */
+    public long[] page_hashes() {
+        for (int page = 0; page < PAGES; page++) {
+            if (dirty_pages[page]) {
+                dirty_pages[page] = false;
+                page_hashes[page] = hash_page(page);
+            }
+        }
+        return page_hashes;
+    }
+
     /**
      * Read and operand pointed to by an r/m8.
      *
@@ -313,9 +841,8 @@ public class CPU {
      */
     public int read_rm8(int modrm) {
         if (modrm < 0xC0) {
-            int dm = decode_modrm(modrm);
-            $global_dm = dm;
-            return rb($cseg, dm);
+            int offset = decode_modrm(modrm);
+            return rb(ea_segment, offset);
         } else {
             return get_reg8(modrm & 7);
         }
@@ -329,10 +856,8 @@ public class CPU {
      */
     public void write_rm8(int modrm, int value) {
         if (modrm < 0xC0) {
-            int dm = decode_modrm(modrm);
-            $global_dm = dm;
-            System.out.printf("[%02x] Current sreg: %04x, offset: %04x, makes: %08x\n", modrm, $cseg, dm, ($cseg << 4) + dm);
-            wb($cseg, dm, value);
+            int offset = decode_modrm(modrm);
+            wb(ea_segment, offset, value);
         } else {
             set_reg8(modrm & 7, value);
         }
@@ -346,22 +871,6 @@ public class CPU {
         set_reg8(modrm >> 3 & 7, value);
     }
 
-    
-    int $global_dm = 0;
-    public void write_rm8_IMM(int modrm, int value){
-        if(modrm < 0xC0){
-            wb($cseg, $global_dm, value);
-        }else{
-            write_rm16(modrm, value);
-        }
-    }
-    public void write_rm16_IMM(int modrm, int value){
-        if(modrm < 0xC0){
-            ww($cseg, $global_dm, value);
-        }else{
-            write_rm16(modrm, value);
-        }
-    }
     /**
      * Read and operand pointed to by an r/m8.
      *
@@ -370,9 +879,8 @@ public class CPU {
      */
     public int read_rm16(int modrm) {
         if (modrm < 0xC0) {
-            int dm = decode_modrm(modrm);
-            $global_dm = dm;
-            return rw($cseg, dm);
+            int offset = decode_modrm(modrm);
+            return rw(ea_segment, offset);
         } else {
             return get_reg16(modrm & 7);
         }
@@ -386,9 +894,8 @@ public class CPU {
      */
     public void write_rm16(int modrm, int value) {
         if (modrm < 0xC0) {
-            int dm = decode_modrm(modrm);
-            $global_dm = dm;
-            ww($cseg, dm, value);
+            int offset = decode_modrm(modrm);
+            ww(ea_segment, offset, value);
         } else {
             set_reg16(modrm & 7, value);
         }
@@ -403,34 +910,111 @@ public class CPU {
     }
 
     /**
-     * Get 8-bit register. The algorithm is a little bit complicated, but here
-     * is the gist of it:
-     *
-     * To get the *register number*, we simply do "& 3". This separates out the
-     * "ABCD" from the "LH." Then, we get the fourth bit (and only the fourth
-     * bit). The two possible values from it are 0 and 4. If we have an "L"
-     * register, then we do not have to shift, but if we do, we have to shift it
-     * down. Therefore, we shift left by 1, multiplying the bit by 2. Thus, this
-     * value will always be 0 (if AL, etc.) or 8 (AH, etc.). Finally, we
-     * truncate the byte.
+     * Resolved r/m operands. An instruction that reads and then writes its
+     * r/m operand calls resolve_rm once and passes the result to
+     * get_operand/set_operand, so the address is worked out once and can't
+     * change between the read and the write (XCHG [BX], BX).
      *
-     * @param id
-     *
-     * @return
+     * A resolved operand is RM_REGISTER | register number, or a linear
+     * address. RM_WRAP is set on the address if a word there wraps around to
+     * offset 0 of the segment.
      */
-    public int get_reg8(int id) {
-        return (registers[id & 3] >>> ((id & 4) << 1)) & 0xFF;
+    private static final int RM_REGISTER = 0x80000000;
+    private static final int RM_WRAP = 0x100000;
+
+    private int resolve_rm(int modrm) {
+        if (modrm >= 0xC0) {
+            return RM_REGISTER | (modrm & 7);
+        }
+        int offset = decode_modrm(modrm);
+        int linear = seg_translation(ea_segment, offset) & 0xFFFFF;
+        if (offset == 0xFFFF && architecture == 8086) {
+            linear |= RM_WRAP;
+        }
+        return linear;
     }
 
-    public void set_reg8(int id, int value) {
-        int shift_constant = ((id & 4) << 1);
-        registers[id & 3] &= ~(0xFF << shift_constant); // Clear out the byte
-        registers[id & 3] |= (value & 0xFF) << shift_constant;
+    private int get_operand8(int rm) {
+        if (rm < 0) {
+            return get_reg8(rm & 7);
+        }
+        return read_byte(rm & 0xFFFFF);
     }
 
-    /**
-     * Get 16-bit register.
-     *
+    private void set_operand8(int rm, int value) {
+        if (rm < 0) {
+            set_reg8(rm & 7, value);
+        } else {
+            write_byte(rm & 0xFFFFF, value);
+        }
+    }
+
+    private int get_operand16(int rm) {
+        if (rm < 0) {
+            return get_reg16(rm & 7);
+        }
+        int linear = rm & 0xFFFFF;
+        if ((rm & RM_WRAP) != 0) {
+            return read_byte(linear) | read_byte(linear - 0xFFFF) << 8;
+        }
+        return read_word(linear);
+    }
+
+    private void set_operand16(int rm, int value) {
+        if (rm < 0) {
+            set_reg16(rm & 7, value);
+            return;
+        }
+        int linear = rm & 0xFFFFF;
+        if ((rm & RM_WRAP) != 0) {
+            write_byte(linear, value);
+            write_byte(linear - 0xFFFF, value >> 8);
+        } else {
+            write_word(linear, value);
+        }
+    }
+
+    private int get_operand(int size, int rm) {
+        return size == 8 ? get_operand8(rm) : get_operand16(rm);
+    }
+
+    private void set_operand(int size, int rm, int value) {
+        if (size == 8) {
+            set_operand8(rm, value);
+        } else {
+            set_operand16(rm, value);
+        }
+    }
+
+    /**
+     * Get 8-bit register. The algorithm is a little bit complicated, but here
+     * is the gist of it:
+     *
+     * To get the *register number*, we simply do "& 3". This separates out the
+     * "ABCD" from the "LH." Then, we get the fourth bit (and only the fourth
+     * bit). The two possible values from it are 0 and 4. If we have an "L"
+     * register, then we do not have to shift, but if we do, we have to shift it
+     * down. Therefore, we shift left by 1, multiplying the bit by 2. Thus, this
+     * value will always be 0 (if AL, etc.) or 8 (AH, etc.). Finally, we
+     * truncate the byte.
+     *
+     * @param id
+     *
+     * @return
+     */
+    public int get_reg8(int id) {
+        return (registers[id & 3] >>> ((id & 4) << 1)) & 0xFF;
+    }
+
+    public void set_reg8(int id, int value) {
+        int shift_constant = ((id & 4) << 1);
+        registers[id & 3] &= ~(0xFF << shift_constant); // Clear out the byte
+        registers[id & 3] |= (value & 0xFF) << shift_constant;
+    }
+
+    /**
+     * Get 16-bit register.
+     *
      * @param id
      * @return
      */
@@ -442,6 +1026,20 @@ public class CPU {
         registers[id] = value & 0xFFFF;
     }
 
+    void inc_reg16(int id) {
+        int op1 = registers[id];
+        int res = op1 + 1;
+        set_inc_flags(16, op1, 1, res);
+        registers[id] = res & 0xFFFF;
+    }
+
+    void dec_reg16(int id) {
+        int op1 = registers[id];
+        int res = op1 - 1;
+        set_dec_flags(16, op1, 1, res);
+        registers[id] = res & 0xFFFF;
+    }
+
     private int[] parity_table = {0, 0 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1, 0, 1, 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1, 1, 1, 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1 ^ 1, 1 ^ 1, 1, 1 ^ 1, 1 ^ 1, 1, 0, 0 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1 ^ 1, 0 ^ 1, 0, 0 ^ 1, 0 ^ 1, 0};
 
     private void set_zf_pf_sf(int res, int size) {
@@ -451,34 +1049,156 @@ public class CPU {
         sf = (res & SIGN_BIT) != 0;
     }
 
+    /**
+     * Lazy flags. Instead of computing all six arithmetic flags after every
+     * ALU operation, we just remember what the last operation was, along with
+     * its operands and result. The flags are only worked out when somebody
+     * actually asks for them (Jcc, PUSHF, LAHF, ADC/SBB, ...), which is not
+     * very often since the next instruction usually overwrites them anyway.
+     *
+     * FLAGS_RESOLVED means that of/sf/zf/af/pf/cf hold the real values.
+     * FLAGS_INC and FLAGS_DEC are like FLAGS_ADD and FLAGS_SUB, except that
+     * the carry flag is left alone and is still held in cf.
+     */
+    final static int FLAGS_RESOLVED = 0;
+    final static int FLAGS_ADD = 1;
+    final static int FLAGS_SUB = 2;
+    final static int FLAGS_BIT = 3;
+    final static int FLAGS_INC = 4;
+    final static int FLAGS_DEC = 5;
+
+    int lazy_op = FLAGS_RESOLVED;
+    int lazy_size, lazy_left, lazy_right, lazy_res;
+
+    /**
+     * Set this to false to compute flags right away, like we used to. Useful
+     * when debugging the lazy flag code.
+     */
+    public boolean lazy_flags = true;
+
+    private void set_lazy_flags(int op, int size, int left, int right, int res) {
+        lazy_op = op;
+        lazy_size = size;
+        lazy_left = left;
+        lazy_right = right;
+        lazy_res = res;
+        if (!lazy_flags) {
+            resolve_flags();
+        }
+    }
+
     private void set_add_flags(int size, int left, int right, int res) {
-        int SIGN_BIT = 1 << (size - 1);
-        cf = (left & (1 << size)) != 0;
-        af = (((left ^ right) ^ res) & 0x10) != 0;
-        of = (((left ^ right ^ SIGN_BIT) & (res ^ right)) & SIGN_BIT) != 0;
-        set_zf_pf_sf(res, size);
+        set_lazy_flags(FLAGS_ADD, size, left, right, res);
     }
 
     private void set_sub_flags(int size, int left, int right, int res) {
-        int SIGN_BIT = 1 << (size - 1);
-        cf = (res & (1 << size)) != 0;
-        af = (((left ^ right) ^ res) & 0x10) != 0;
-        of = (((left ^ right) & (res ^ left)) & SIGN_BIT) != 0;
-        set_zf_pf_sf(res, size);
+        set_lazy_flags(FLAGS_SUB, size, left, right, res);
     }
 
     private void set_bit_flags(int size, int left, int right, int res) {
-        cf = af = of = false;
-        set_zf_pf_sf(res, size);
+        set_lazy_flags(FLAGS_BIT, size, left, right, res);
+    }
+
+    /**
+     * INC and DEC do not touch the carry flag, so we have to save it before we
+     * overwrite the lazy state.
+     */
+    private void set_inc_flags(int size, int left, int right, int res) {
+        cf = get_cf();
+        set_lazy_flags(FLAGS_INC, size, left, right, res);
+    }
+
+    private void set_dec_flags(int size, int left, int right, int res) {
+        cf = get_cf();
+        set_lazy_flags(FLAGS_DEC, size, left, right, res);
+    }
+
+    /**
+     * Compute all the flags from the lazy state. This has to be called before
+     * anything reads or writes of/sf/zf/af/pf/cf directly.
+     */
+    void resolve_flags() {
+        if (lazy_op == FLAGS_RESOLVED) {
+            return;
+        }
+        boolean new_cf = get_cf();
+        of = get_of();
+        sf = get_sf();
+        zf = get_zf();
+        af = get_af();
+        pf = get_pf();
+        cf = new_cf;
+        lazy_op = FLAGS_RESOLVED;
+    }
+
+    boolean get_cf() {
+        switch (lazy_op) {
+            case FLAGS_ADD:
+                return (lazy_res & (1 << lazy_size)) != 0;
+            case FLAGS_SUB:
+                return (lazy_res & (1 << lazy_size)) != 0;
+            case FLAGS_BIT:
+                return false;
+            default:
+                return cf;
+        }
+    }
+
+    boolean get_af() {
+        switch (lazy_op) {
+            case FLAGS_RESOLVED:
+                return af;
+            case FLAGS_BIT:
+                return false;
+            default:
+                return (((lazy_left ^ lazy_right) ^ lazy_res) & 0x10) != 0;
+        }
+    }
+
+    boolean get_of() {
+        int SIGN_BIT = 1 << (lazy_size - 1);
+        switch (lazy_op) {
+            case FLAGS_ADD:
+            case FLAGS_INC:
+                return (((lazy_left ^ lazy_right ^ SIGN_BIT) & (lazy_res ^ lazy_right)) & SIGN_BIT) != 0;
+            case FLAGS_SUB:
+            case FLAGS_DEC:
+                return (((lazy_left ^ lazy_right) & (lazy_res ^ lazy_left)) & SIGN_BIT) != 0;
+            case FLAGS_BIT:
+                return false;
+            default:
+                return of;
+        }
+    }
+
+    boolean get_zf() {
+        if (lazy_op == FLAGS_RESOLVED) {
+            return zf;
+        }
+        return (lazy_res & ((1 << lazy_size) - 1)) == 0;
+    }
+
+    boolean get_sf() {
+        if (lazy_op == FLAGS_RESOLVED) {
+            return sf;
+        }
+        return (lazy_res & (1 << (lazy_size - 1))) != 0;
+    }
+
+    boolean get_pf() {
+        if (lazy_op == FLAGS_RESOLVED) {
+            return pf;
+        }
+        return parity_table[lazy_res & 0xFF] == 0;
     }
 
     public void push16(int data) {
         registers[SP] = (registers[SP] - 2) & 0xFFFF;
-        write_word(seg_translation(ss, registers[SP]), data);
+        ww(ss, registers[SP], data);
     }
 
     public int pop16() {
-        int b = read_word(seg_translation(ss, registers[SP]));
+        int b = rw(ss, registers[SP]);
         registers[SP] = (registers[SP] + 2) & 0xFFFF;
         return b;
     }
@@ -488,33 +1208,35 @@ public class CPU {
     public static final int AF = (1 << 4);
     public static final int ZF = (1 << 6);
     public static final int SF = (1 << 7);
+    public static final int IF = (1 << 9);
     public static final int DF = (1 << 10);
     public static final int OF = (1 << 11);
 
     public int get_eflags() {
         int val = this.additional_eflags_bits;
-        if (of) {
+        if (get_of()) {
             val |= OF;
         }
-        if (sf) {
+        if (get_sf()) {
             val |= SF;
         }
-        if (zf) {
+        if (get_zf()) {
             val |= ZF;
         }
-        if (af) {
+        if (get_af()) {
             val |= AF;
         }
-        if (pf) {
+        if (get_pf()) {
             val |= PF;
         }
-        if (cf) {
+        if (get_cf()) {
             val |= CF;
         }
         return val;
     }
 
     public void set_eflags(int c) {
+        lazy_op = FLAGS_RESOLVED;
         of = (c & OF) != 0;
         sf = (c & SF) != 0;
         zf = (c & ZF) != 0;
@@ -526,19 +1248,218 @@ public class CPU {
 
     int instructions = 0;
 
+    /**
+     * Number of clock cycles the CPU has run for.
+     */
+    public long cycles;
+
+    /**
+     * Cycle counts for the architecture we are emulating
+     */
+    private CycleTable cycle_table = CycleTable.I8086;
+
+    /**
+     * The cycle count at which a device wants to be told that time has
+     * passed. This is checked between instructions, so devices never have to
+     * be polled. See Scheduler.
+     */
+    public long next_event = Long.MAX_VALUE;
+
+    /**
+     * Called once cycles reaches next_event. It has to move next_event
+     * forward.
+     */
+    public Runnable event_handler;
+
+    /**
+     * Nonzero if the interrupt controller might have something for us. This
+     * is the only thing checked between instructions, so it should be zero
+     * almost all of the time. Any thread may set it.
+     */
+    public volatile int interrupt_pending;
+
+    /**
+     * Cycle count and instruction count that run_cycles and run_for stop at.
+     * Compiled blocks run in one go without checking anything, so a block is
+     * only run if it ends by these and by next_event. Otherwise its
+     * instructions are interpreted one by one.
+     */
+    private long cycle_limit = Long.MAX_VALUE, instruction_limit = Long.MAX_VALUE;
+
+    /**
+     * Where hardware interrupts come from, or null
+     */
+    public InterruptController pic;
+
+    /**
+     * Number of the last instruction that holds off interrupts until the
+     * next one has run (STI, MOV SS, POP SS).
+     */
+    private int interrupt_shadow = -1;
+
+    /**
+     * Set when the CPU runs HLT with interrupts off (or with no interrupt
+     * controller), so that nothing can ever wake it up. run_for and
+     * run_cycles do nothing while this is set.
+     */
+    public boolean halted;
+
+    /**
+     * Set when the CPU runs HLT with interrupts on. No instructions are run,
+     * time skips ahead from one device event to the next, and the next
+     * interrupt clears this again. This is how a BIOS or DOS idles.
+     */
+    public boolean waiting;
+
+    /**
+     * Instruction tracer, or null if tracing is off
+     */
+    public Tracer tracer;
+
     // Main loop
     public void run() {
+        try {
+            step();
+        } catch (RuntimeException | HLTException e) {
+            if (tracer != null) {
+                tracer.dump(this, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Run one instruction, and any device events that are due after it.
+     */
+    protected void step() {
+        if (waiting && !idle(Long.MAX_VALUE)) {
+            return;
+        }
         instructions++;
         current_sreg = -1;
         rep = 0;
 
-        System.out.printf("(%d) %04x:%04x -> %02x\n", instructions, cs, eip, this.rb(cs, eip));
-        
+        if (tracer != null) {
+            tracer.trace(this);
+        }
         run_instruction();
-        dump_state();
+        if (cycles >= next_event) {
+            event_handler.run();
+        }
+        if (interrupt_pending != 0) {
+            check_interrupts();
+        }
+    }
+
+    /**
+     * Let time pass while HLT waits for an interrupt: skip ahead to the next
+     * device event (but not past limit), run it, and take the interrupt if
+     * one came.
+     *
+     * @param limit
+     * @return true if the CPU is running again
+     */
+    private boolean idle(long limit) {
+        if (interrupt_pending != 0) {
+            check_interrupts();
+        }
+        if (!waiting) {
+            return true;
+        }
+        long until = Math.min(next_event, limit);
+        if (until == Long.MAX_VALUE) {
+            return false; // Only another thread can wake us now
+        }
+        if (until > cycles) {
+            cycles = until;
+        }
+        if (cycles >= next_event) {
+            event_handler.run();
+        }
+        if (interrupt_pending != 0) {
+            check_interrupts();
+        }
+        return !waiting;
+    }
+
+    private void check_interrupts() {
+        if ((additional_eflags_bits & IF) == 0 || interrupt_shadow == instructions || pic == null) {
+            return;
+        }
+        int vector = pic.acknowledge();
+        if (vector >= 0) {
+            cycles += cycle_table.interrupt;
+            interrupt(vector);
+        }
+    }
+
+    /**
+     * Run up to count instructions in one go. Stops early if the CPU halts,
+     * or if it is waiting in HLT and the next device event didn't wake it.
+     *
+     * @param count
+     * @return The number of instructions that were run
+     */
+    public int run_for(int count) {
+        int start = instructions;
+        instruction_limit = (long) start + count;
+        try {
+            while (!halted && instructions - start < count) {
+                if (waiting && !idle(Long.MAX_VALUE)) {
+                    break;
+                }
+                step();
+            }
+        } catch (HLTException e) {
+            halted = true;
+            if (tracer != null) {
+                tracer.dump(this, e);
+            }
+        } catch (RuntimeException e) {
+            if (tracer != null) {
+                tracer.dump(this, e);
+            }
+            throw e;
+        } finally {
+            instruction_limit = Long.MAX_VALUE;
+        }
+        return instructions - start;
+    }
+
+    /**
+     * Run until at least count more cycles have gone by, or the CPU halts.
+     *
+     * @param count
+     * @return The number of cycles that were run
+     */
+    public long run_cycles(long count) {
+        long start = cycles;
+        long end = start + count;
+        cycle_limit = end;
+        try {
+            while (!halted && cycles < end) {
+                if (waiting && !idle(end)) {
+                    continue;
+                }
+                step();
+            }
+        } catch (HLTException e) {
+            halted = true;
+            if (tracer != null) {
+                tracer.dump(this, e);
+            }
+        } catch (RuntimeException e) {
+            if (tracer != null) {
+                tracer.dump(this, e);
+            }
+            throw e;
+        } finally {
+            cycle_limit = Long.MAX_VALUE;
+        }
+        return cycles - start;
     }
-    
-    public void dump_state(){
+
+    public void dump_state() {
         System.out.printf("AX: %04x CX: %04x DX: %04x BX: %04x\n", registers[0],registers[1],registers[2],registers[3]);
         System.out.printf("SP: %04x BP: %04x SI: %04x DI: %04x\n", registers[4],registers[5],registers[6],registers[7]);
     }
@@ -546,9 +1467,179 @@ public class CPU {
     public void reset() {
         eip = 0xFFF0;
         cs = 0xF000;
+        halted = false;
+        waiting = false;
+        rep_resume = -1;
         this.additional_eflags_bits = 2;
     }
 
+    // How each page is stored by save()
+    private final static int SAVED_ZERO = 0;
+    private final static int SAVED_RAW = 1;
+    private final static int SAVED_DEFLATED = 2;
+
+    private final static byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+    /**
+     * Write the registers, flags, cycle count and the first megabyte of
+     * memory. Pages that are all zero take one byte, the rest are deflated
+     * if that makes them smaller. See Machine.save for the whole format.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void save(DataOutputStream out) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            out.writeShort(registers[i]);
+        }
+        out.writeShort(eip);
+        out.writeShort(cs);
+        out.writeShort(ds);
+        out.writeShort(es);
+        out.writeShort(ss);
+        out.writeShort(fs);
+        out.writeShort(gs);
+        out.writeInt(get_eflags());
+        out.writeInt(architecture);
+        out.writeBoolean(halted);
+        out.writeBoolean(waiting);
+        out.writeInt(rep_resume);
+        out.writeBoolean(interrupt_shadow == instructions);
+        out.writeInt(instructions);
+        out.writeLong(cycles);
+
+        out.writeInt(fpu_enabled);
+        for (double d : fpu.stack) {
+            out.writeDouble(d);
+        }
+        out.writeByte(fpu.ftop);
+        out.writeByte((fpu.c0 ? 1 : 0) | (fpu.c1 ? 2 : 0) | (fpu.c2 ? 4 : 0) | (fpu.c3 ? 8 : 0));
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] buffer = new byte[PAGE_SIZE];
+        try {
+            for (int page = 0; page < PAGES; page++) {
+                int start = page << PAGE_SHIFT;
+                if (Arrays.equals(ram, start, start + PAGE_SIZE, ZERO_PAGE, 0, PAGE_SIZE)) {
+                    out.writeByte(SAVED_ZERO);
+                    continue;
+                }
+                deflater.reset();
+                deflater.setInput(ram, start, PAGE_SIZE);
+                deflater.finish();
+                int length = deflater.deflate(buffer);
+                if (deflater.finished() && length < PAGE_SIZE) {
+                    out.writeByte(SAVED_DEFLATED);
+                    out.writeShort(length);
+                    out.write(buffer, 0, length);
+                } else {
+                    out.writeByte(SAVED_RAW);
+                    out.write(ram, start, PAGE_SIZE);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read back what save() wrote. Only pages that are different from what
+     * is in memory now are copied, so decoded and compiled code for the rest
+     * is kept. Pages with a write handler (text memory) get their new bytes
+     * through it, so that the device sees them too. ROM is overwritten like
+     * the rest, and page types are left alone.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void restore(DataInputStream in) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            registers[i] = in.readUnsignedShort();
+        }
+        eip = in.readUnsignedShort();
+        cs = in.readUnsignedShort();
+        ds = in.readUnsignedShort();
+        es = in.readUnsignedShort();
+        ss = in.readUnsignedShort();
+        fs = in.readUnsignedShort();
+        gs = in.readUnsignedShort();
+        set_eflags(in.readInt());
+        int saved_architecture = in.readInt();
+        if (saved_architecture != architecture) {
+            set_architecture(saved_architecture);
+        }
+        halted = in.readBoolean();
+        waiting = in.readBoolean();
+        rep_resume = in.readInt();
+        boolean shadow = in.readBoolean();
+        instructions = in.readInt();
+        interrupt_shadow = shadow ? instructions : -1;
+        cycles = in.readLong();
+
+        fpu_enabled = in.readInt();
+        for (int i = 0; i < fpu.stack.length; i++) {
+            fpu.stack[i] = in.readDouble();
+        }
+        fpu.ftop = in.readUnsignedByte() & 7;
+        int c = in.readUnsignedByte();
+        fpu.c0 = (c & 1) != 0;
+        fpu.c1 = (c & 2) != 0;
+        fpu.c2 = (c & 4) != 0;
+        fpu.c3 = (c & 8) != 0;
+
+        Inflater inflater = new Inflater();
+        byte[] page_data = new byte[PAGE_SIZE];
+        byte[] buffer = new byte[PAGE_SIZE];
+        try {
+            for (int page = 0; page < PAGES; page++) {
+                int type = in.readUnsignedByte();
+                switch (type) {
+                    case SAVED_ZERO:
+                        Arrays.fill(page_data, (byte) 0);
+                        break;
+                    case SAVED_RAW:
+                        in.readFully(page_data);
+                        break;
+                    case SAVED_DEFLATED: {
+                        int length = in.readUnsignedShort();
+                        in.readFully(buffer, 0, length);
+                        inflater.reset();
+                        inflater.setInput(buffer, 0, length);
+                        try {
+                            if (inflater.inflate(page_data) != PAGE_SIZE) {
+                                throw new IOException("Page " + page + " is too short");
+                            }
+                        } catch (DataFormatException e) {
+                            throw new IOException("Page " + page + " is corrupt", e);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown page type " + type);
+                }
+                restore_page(page, page_data);
+            }
+        } finally {
+            inflater.end();
+        }
+        current_op = null;
+    }
+
+    private void restore_page(int page, byte[] data) {
+        int start = page << PAGE_SHIFT;
+        if (Arrays.equals(ram, start, start + PAGE_SIZE, data, 0, PAGE_SIZE)) {
+            return;
+        }
+        if (page_types[page] == PAGE_MMIO_WRITE) {
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                memory_maps[page].handler(start + i, data[i] & 0xFF);
+            }
+        }
+        System.arraycopy(data, 0, ram, start, PAGE_SIZE);
+        decode_cache.invalidate_page(page);
+        dirty_pages[page] = true;
+    }
+
     /**
      * Call interrupt vector!
      *
@@ -558,36 +1649,38 @@ public class CPU {
         push16(get_eflags());
         push16(cs);
         push16(eip);
-        eip = read_word((num << 2) + 0);
-        cs = read_word((num << 2) + 2);
+        int vector = read_dword(num << 2);
+        eip = vector & 0xFFFF;
+        cs = vector >>> 16;
         this.additional_eflags_bits &= 0xFCFF;
-    }
-
-    protected void step() {
-        run_instruction();
+        waiting = false;
     }
 
     public int run_arith(int size, int instruction, int op1, int op2) {
         int res = 0;
+        // Sign extended immediates (83) come in negative
+        int mask = (1 << size) - 1;
+        op1 &= mask;
+        op2 &= mask;
         switch (instruction) {
             // ADD: Adds two numbers together
             case 0:
                 res = op1 + op2;
                 set_add_flags(size, op1, op2, res);
                 break;
-            // SUB: Subtracts two numbers
+            // OR: Bitwise OR
             case 1:
                 res = op1 | op2;
                 set_bit_flags(size, op1, op2, res);
                 break;
             // ADC: Adds two numbers, plus the carry flag
             case 2:
-                res = (cf ? 1 : 0) + (op1 + op2);
+                res = (get_cf() ? 1 : 0) + (op1 + op2);
                 set_add_flags(size, op1, op2, res);
                 break;
             // SBB: Subtracts two numbers, and then the carry flag
             case 3:
-                res = (op1 - op2) - (cf ? 1 : 0);
+                res = (op1 - op2) - (get_cf() ? 1 : 0);
                 set_sub_flags(size, op1, op2, res);
                 break;
             // AND: Bitwise AND
@@ -595,11 +1688,11 @@ public class CPU {
                 res = op1 & op2;
                 set_bit_flags(size, op1, op2, res);
                 break;
-            // SUB: Subtract two numbers
+            // SUB, CMP: Subtract two numbers
             case 5:
             case 7:
                 res = op1 - op2;
-                set_bit_flags(size, op1, op2, res);
+                set_sub_flags(size, op1, op2, res);
                 break;
             // XOR: Bitwise XOR
             case 6:
@@ -610,6 +1703,84 @@ public class CPU {
         return res;
     }
 
+    /**
+     * Rotate or shift a value (D0-D3). The 8086 uses the whole count, the
+     * 80186 only the low 5 bits of it. A count of 0 changes nothing, not even
+     * the flags.
+     *
+     * @param size 8 or 16
+     * @param instruction ROL, ROR, RCL, RCR, SHL, SHR, SAL (same as SHL), SAR
+     * @param value
+     * @param count
+     * @return The result
+     */
+    int run_shift(int size, int instruction, int value, int count) {
+        if (architecture != 8086) {
+            count &= 0x1F;
+        }
+        if (count == 0) {
+            return value;
+        }
+        int mask = (1 << size) - 1;
+        int sign = size - 1;
+        value &= mask;
+        resolve_flags();
+        int res, r;
+        switch (instruction) {
+            case 0: // ROL
+                r = count % size;
+                res = (value << r | value >>> (size - r)) & mask;
+                cf = (res & 1) != 0;
+                of = ((res >> sign & 1) != 0) != cf;
+                return res;
+            case 1: // ROR
+                r = count % size;
+                res = (value >>> r | value << (size - r)) & mask;
+                cf = (res >> sign & 1) != 0;
+                of = ((res >> sign ^ res >> (sign - 1)) & 1) != 0;
+                return res;
+            case 2: { // RCL
+                // Rotate size + 1 bits: the value with CF on top
+                r = count % (size + 1);
+                int wide = value | (cf ? 1 << size : 0);
+                wide = (wide << r | wide >>> (size + 1 - r)) & (mask << 1 | 1);
+                res = wide & mask;
+                cf = (wide >> size) != 0;
+                of = ((res >> sign & 1) != 0) != cf;
+                return res;
+            }
+            case 3: { // RCR
+                of = ((value >> sign & 1) != 0) != cf;
+                r = count % (size + 1);
+                int wide = value | (cf ? 1 << size : 0);
+                wide = (wide >>> r | wide << (size + 1 - r)) & (mask << 1 | 1);
+                res = wide & mask;
+                cf = (wide >> size) != 0;
+                return res;
+            }
+            case 4: // SHL
+            case 6: // SAL
+                res = count < size ? value << count & mask : 0;
+                cf = count <= size && (value >> (size - count) & 1) != 0;
+                of = ((res >> sign & 1) != 0) != cf;
+                break;
+            case 5: // SHR
+                res = count < size ? value >>> count : 0;
+                cf = count <= size && (value >> (count - 1) & 1) != 0;
+                of = (value >> sign & 1) != 0;
+                break;
+            default: // SAR
+                int signed = value << (32 - size) >> (32 - size);
+                res = signed >> Math.min(count, size - 1) & mask;
+                cf = (signed >> Math.min(count - 1, size - 1) & 1) != 0;
+                of = false;
+                break;
+        }
+        set_zf_pf_sf(res, size);
+        af = false;
+        return res;
+    }
+
     int read_rm(int size, int modrm) {
         if (size == 8) {
             return read_rm8(modrm);
@@ -626,1497 +1797,1394 @@ public class CPU {
         }
     }
 
-    int nextv(int opsz) {
-        if (opsz == 8) {
-            return next_byte();
+    // String instructions. The REP forms try to do everything with one
+    // array operation, and fall back to going one element at a time.
+    private int string_step(int size) {
+        return (additional_eflags_bits & DF) == 0 ? size : -size;
+    }
+
+    // Read/write a string element
+    private int rs(int seg, int offset, int size) {
+        return size == 1 ? rb(seg, offset) : rw(seg, offset);
+    }
+
+    private void ws(int seg, int offset, int value, int size) {
+        if (size == 1) {
+            wb(seg, offset, value);
         } else {
-            return next_word();
+            ww(seg, offset, value);
         }
     }
 
-    void write_rm(int size, int modrm, int value) {
-        if (size == 8) {
-            write_rm8(modrm, value);
-        } else {
-            this.write_rm16(modrm, value);
+    /**
+     * Find count string elements starting at seg:offset in ram[], going in the
+     * direction given by DF. This only works if they don't wrap around the
+     * segment or the end of memory, and every page can be accessed directly.
+     *
+     * @return The lowest linear address, or -1 if we have to go one element
+     * at a time.
+     */
+    private int string_block(int seg, int offset, int count, int size, boolean write) {
+        int bytes = count * size;
+        int low = (additional_eflags_bits & DF) == 0 ? offset : offset - bytes + size;
+        if (low < 0 || low + bytes > 0x10000) {
+            return -1;
+        }
+        int linear = (seg << 4) + low;
+        if (linear + bytes > 0x100000) {
+            return -1;
+        }
+        for (int page = linear >> PAGE_SHIFT; page <= (linear + bytes - 1) >> PAGE_SHIFT; page++) {
+            if (write ? page_types[page] != PAGE_RAM : page_types[page] == PAGE_MMIO) {
+                return -1;
+            }
         }
+        return linear;
     }
 
-    void write_reg(int size, int modrm, int value) {
-        if (size == 8) {
-            write_reg8(modrm, value);
-        } else {
-            this.write_reg16(modrm, value);
+    /**
+     * Move SI and DI (if they are used) forward count elements and take
+     * count off of CX.
+     */
+    private void skip_string(int count, int size, boolean uses_si) {
+        int delta = count * string_step(size);
+        if (uses_si) {
+            registers[SI] = (registers[SI] + delta) & 0xFFFF;
         }
+        registers[DI] = (registers[DI] + delta) & 0xFFFF;
+        registers[CX] = (registers[CX] - count) & 0xFFFF;
     }
 
-    private void run_instruction() {
-        while (true) {
-            int opcode = next_byte();
-            int modrm = 0, op1, op2, res;
-            switch (opcode) {
-                case 0x00:
-                case 0x01:
-                case 0x02:
-                case 0x03:
-                case 0x04:
-                case 0x05:
-                case 0x08:
-                case 0x09:
-                case 0x0A:
-                case 0x0B:
-                case 0x0C:
-                case 0x0D:
-                case 0x10:
-                case 0x11:
-                case 0x12:
-                case 0x13:
-                case 0x14:
-                case 0x15:
-                case 0x18:
-                case 0x19:
-                case 0x1A:
-                case 0x1B:
-                case 0x1C:
-                case 0x1D:
-                case 0x20:
-                case 0x21:
-                case 0x22:
-                case 0x23:
-                case 0x24:
-                case 0x25:
-                case 0x28:
-                case 0x29:
-                case 0x2A:
-                case 0x2B:
-                case 0x2C:
-                case 0x2D:
-                case 0x30:
-                case 0x31:
-                case 0x32:
-                case 0x33:
-                case 0x34:
-                case 0x35:
-                case 0x38:
-                case 0x39:
-                case 0x3A:
-                case 0x3B:
-                case 0x3C:
-                case 0x3D:
-                    modrm = next_byte();
-                    int opsz = 8 << (opcode & 1);
-                    int opc = opcode >> 3;
-                    switch (opcode >> 1 & 3) {
-                        // 0 and 1: r/m, r
-                        case 0:
-                            op1 = read_rm(opsz, modrm);
-                            op2 = read_reg(opsz, modrm);
-                            break;
-                        // 2 and 3: r, r/m
-                        case 1:
-                            op1 = read_reg(opsz, modrm);
-                            op2 = read_rm(opsz, modrm);
-                            break;
-                        // 4 and 5: al, ib
-                        case 2:
-                            op1 = read_reg(opsz, 0xC0);
-                            op2 = nextv(opsz);
-                            break;
-                        // 6 and 7: Invalid
-                        default:
-                            throw new Error("Unexpected opcode: " + opcode);
-                    }
-                    res = run_arith(opsz, opc, op1, op2);
-                    if (opc != 7) {
-                        switch (opcode >> 1 & 3) {
-                            case 0:
-                                write_rm(opsz, modrm, res);
-                                break;
-                            case 1:
-                                write_reg(opsz, modrm, res);
-                                break;
-                            case 2:
-                                write_rm(opsz, 0xC0, res);
-                                break;
-                        }
-                    }
-                    return;
-                case 0x06:
-                    push16(es);
-                    return;
-                case 0x07:
-                    es = pop16();
-                    return;
-                case 0x0E:
-                    push16(cs);
-                    return;
-                case 0x0F:
-                    cs = pop16();
-                    return;
-                case 0x16:
-                    push16(ss);
-                    return;
-                case 0x17:
-                    ss = pop16();
-                    return;
-                case 0x1E:
-                    push16(ds);
-                    return;
-                case 0x1F:
-                    ds = pop16();
-                    return;
-                case 0x26:
-                    current_sreg = es;
-                    continue;
-                case 0x27: {
-                    // https://www.felixcloutier.com/x86/DAA.html
-                    int old_al = get_reg8(AL);
-                    int al = old_al;
-                    boolean old_cf = cf;
-                    cf = false;
-                    if (((al & 15) > 9) || af) {
-                        al += 6;
-                        cf = old_cf || (al > 255); // al > 255 is carry out
-                        al &= 0xFF;
-                        af = true;
-                    } else {
-                        af = false;
-                    }
-                    if ((old_al > 0x99) || old_cf) {
-                        al = (al + 0x60) & 0xFF;
-                        cf = true;
-                    } else {
-                        cf = false;
+    /**
+     * Called after a slice of a REP instruction. If CX isn't zero yet, point
+     * IP back at the instruction (prefixes and all) so that it picks up where
+     * it left off the next time around.
+     */
+    private void continue_rep() {
+        if (registers[CX] != 0) {
+            eip = (eip - current_op.length) & 0xFFFF;
+            rep_resume = current_op.linear;
+        }
+    }
+
+    private void movs(int size) {
+        int seg = data_segment();
+        int step = string_step(size);
+        int count = 1;
+        if (rep != NO_REP_PREFIX) {
+            count = Math.min(registers[CX], rep_slice);
+            int from = string_block(seg, registers[SI], count, size, false);
+            int to = string_block(es, registers[DI], count, size, true);
+            int bytes = count * size;
+            // Overlapping copies repeat a pattern one element at a time,
+            // which is not what arraycopy does
+            if (count != 0 && from != -1 && to != -1 && (from + bytes <= to || to + bytes <= from)) {
+                System.arraycopy(ram, from, ram, to, bytes);
+                decode_cache.write_range(to, bytes);
+                mark_dirty(to, bytes);
+                skip_string(count, size, true);
+                count = 0;
+            }
+        }
+        for (; count > 0; count--) {
+            if (rep != NO_REP_PREFIX) {
+                registers[CX] = (registers[CX] - 1) & 0xFFFF;
+            }
+            ws(es, registers[DI], rs(seg, registers[SI], size), size);
+            registers[DI] = (registers[DI] + step) & 0xFFFF;
+            registers[SI] = (registers[SI] + step) & 0xFFFF;
+        }
+        if (rep != NO_REP_PREFIX) {
+            continue_rep();
+        }
+    }
+
+    private void stos(int size) {
+        int step = string_step(size);
+        int value = size == 1 ? get_reg8(AL) : get_reg16(AX);
+        int count = 1;
+        if (rep != NO_REP_PREFIX) {
+            count = Math.min(registers[CX], rep_slice);
+            int to = string_block(es, registers[DI], count, size, true);
+            int bytes = count * size;
+            if (count != 0 && to != -1) {
+                if (size == 1 || (value & 0xFF) == value >> 8) {
+                    Arrays.fill(ram, to, to + bytes, (byte) value);
+                } else {
+                    for (int i = 0; i < bytes; i += 2) {
+                        RAM_WORD.set(ram, to + i, (short) value);
                     }
-                    set_reg8(AL, al);
-                    this.set_zf_pf_sf(al, 8);
-                    of = false; // ?
-                    return;
                 }
-                case 0x2E:
-                    current_sreg = cs;
-                    continue;
-                case 0x2F: {// https://www.felixcloutier.com/x86/DAS.html
-                    int old_al = get_reg8(AL);
-                    int al = old_al;
-                    boolean old_cf = cf;
+                decode_cache.write_range(to, bytes);
+                mark_dirty(to, bytes);
+                skip_string(count, size, false);
+                count = 0;
+            }
+        }
+        for (; count > 0; count--) {
+            if (rep != NO_REP_PREFIX) {
+                registers[CX] = (registers[CX] - 1) & 0xFFFF;
+            }
+            ws(es, registers[DI], value, size);
+            registers[DI] = (registers[DI] + step) & 0xFFFF;
+        }
+        if (rep != NO_REP_PREFIX) {
+            continue_rep();
+        }
+    }
 
-                    cf = false;
-                    if (((al & 15) > 9) || af) {
-                        al -= 6;
-                        cf = old_cf || (al < 0); // al < 0 is carry out
-                        al &= 0xFF;
-                        af = true;
-                    } else {
-                        af = false;
+    private void lods(int size) {
+        int seg = data_segment();
+        int step = string_step(size);
+        int count = rep != NO_REP_PREFIX ? Math.min(registers[CX], rep_slice) : 1;
+        for (; count > 0; count--) {
+            if (rep != NO_REP_PREFIX) {
+                registers[CX] = (registers[CX] - 1) & 0xFFFF;
+            }
+            if (size == 1) {
+                set_reg8(AL, rb(seg, registers[SI]));
+            } else {
+                set_reg16(AX, rw(seg, registers[SI]));
+            }
+            registers[SI] = (registers[SI] + step) & 0xFFFF;
+        }
+        if (rep != NO_REP_PREFIX) {
+            continue_rep();
+        }
+    }
+
+    private void cmps(int size) {
+        int seg = data_segment();
+        int step = string_step(size);
+        boolean stop_if_equal = rep == REPNZ;
+        int count = 1;
+        if (rep != NO_REP_PREFIX) {
+            count = Math.min(registers[CX], rep_slice);
+            if (rep == REPZ && step > 0 && count != 0) {
+                // Skip over everything up to the first difference. The last
+                // comparison is done below, since that sets the flags.
+                int from = string_block(seg, registers[SI], count, size, false);
+                int to = string_block(es, registers[DI], count, size, false);
+                if (from != -1 && to != -1) {
+                    int i = Arrays.mismatch(ram, from, from + count * size, ram, to, to + count * size);
+                    int skip = i == -1 ? count - 1 : i / size;
+                    skip_string(skip, size, true);
+                    count -= skip;
+                }
+            }
+        }
+        for (; count > 0; count--) {
+            if (rep != NO_REP_PREFIX) {
+                registers[CX] = (registers[CX] - 1) & 0xFFFF;
+            }
+            int op1 = rs(seg, registers[SI], size);
+            int op2 = rs(es, registers[DI], size);
+            registers[DI] = (registers[DI] + step) & 0xFFFF;
+            registers[SI] = (registers[SI] + step) & 0xFFFF;
+            set_sub_flags(size * 8, op1, op2, op1 - op2);
+            if ((op1 == op2) == stop_if_equal) {
+                return;
+            }
+        }
+        if (rep != NO_REP_PREFIX) {
+            continue_rep();
+        }
+    }
+
+    private void scas(int size) {
+        int step = string_step(size);
+        int value = size == 1 ? get_reg8(AL) : get_reg16(AX);
+        boolean stop_if_equal = rep == REPNZ;
+        int count = 1;
+        if (rep != NO_REP_PREFIX) {
+            count = Math.min(registers[CX], rep_slice);
+            int to = string_block(es, registers[DI], count, size, false);
+            if (step > 0 && count != 0 && to != -1) {
+                int i = 0;
+                if (size == 1) {
+                    while (i < count - 1 && ((ram[to + i] & 0xFF) == value) != stop_if_equal) {
+                        i++;
                     }
-                    if ((old_al > 0x99) || old_cf) {
-                        al = (al - 0x60) & 0xFF;
-                        cf = true;
-                    } else {
-                        cf = false;
+                } else {
+                    while (i < count - 1 && (((short) RAM_WORD.get(ram, to + i * 2) & 0xFFFF) == value) != stop_if_equal) {
+                        i++;
                     }
-                    this.set_zf_pf_sf(al, 8);
-                    of = false; // ?
-                    set_reg8(AL, al);
-                    return;
                 }
-                case 0x36:
-                    current_sreg = ss;
-                    continue;
-                case 0x37:
-                    // https://www.felixcloutier.com/x86/AAA.html
-                    boolean dddd = af;
-                    if (((get_reg8(AL) & 15) > 9) || af) {
-                        if (this.architecture == 8086) {
-                            set_reg8(AL, get_reg8(AL) + 6);
-                            set_reg8(AH, get_reg8(AH) + 1);
-                        } else {
-                            registers[AX] = (registers[AX] + 0x106) & 0xFFFF;
-                        }
-                        af = true;
-                        cf = true;
+                skip_string(i, size, false);
+                count -= i;
+            }
+        }
+        for (; count > 0; count--) {
+            if (rep != NO_REP_PREFIX) {
+                registers[CX] = (registers[CX] - 1) & 0xFFFF;
+            }
+            int op2 = rs(es, registers[DI], size);
+            registers[DI] = (registers[DI] + step) & 0xFFFF;
+            set_sub_flags(size * 8, value, op2, value - op2);
+            if ((value == op2) == stop_if_equal) {
+                return;
+            }
+        }
+        if (rep != NO_REP_PREFIX) {
+            continue_rep();
+        }
+    }
+
+    private void run_instruction() {
+        int linear = seg_translation(cs, eip) & 0xFFFFF;
+        DecodedOp op = current_op;
+        if (op == null || (op = op.next) == null || op.linear != linear) {
+            op = decode_cache.get(linear);
+            if (op == null) {
+                op = decode_block();
+            } else if (jit_enabled && ++op.executions == JIT_THRESHOLD) {
+                op.compiled = BlockCompiler.compile(op);
+            }
+            CompiledBlock block = op.compiled;
+            if (block != null && jit_enabled
+                    && cycles + block.cycles <= Math.min(next_event, cycle_limit)
+                    && instructions + block.count - 1 <= instruction_limit) {
+                block.run(this);
+                current_op = block.last;
+                instructions += block.count - 1;
+                cycles += block.cycles;
+                return;
+            }
+        }
+        current_op = op;
+        if (op.rep_cycles == 0 || op.linear != rep_resume) {
+            cycles += op.cycles;
+        }
+        int next = (eip + op.length) & 0xFFFF;
+        eip = next;
+        if (op.sreg != -1) {
+            current_sreg = get_sreg(op.sreg);
+        }
+        rep = op.rep;
+        if (op.rep_cycles != 0) {
+            int count = registers[CX];
+            rep_resume = -1;
+            execute(op);
+            cycles += (long) (count - registers[CX]) * op.rep_cycles;
+        } else {
+            execute(op);
+            if (op.taken_cycles != 0 && eip != next) {
+                cycles += op.taken_cycles;
+            }
+        }
+    }
 
-                        // According to native?
-                        zf = false;
-                        sf = false;
+    private void execute(DecodedOp op) {
+        int opcode = op.opcode;
+        int modrm = 0, rm, op1, op2, res;
+        switch (opcode) {
+            case 0x00:
+            case 0x01:
+            case 0x02:
+            case 0x03:
+            case 0x04:
+            case 0x05:
+            case 0x08:
+            case 0x09:
+            case 0x0A:
+            case 0x0B:
+            case 0x0C:
+            case 0x0D:
+            case 0x10:
+            case 0x11:
+            case 0x12:
+            case 0x13:
+            case 0x14:
+            case 0x15:
+            case 0x18:
+            case 0x19:
+            case 0x1A:
+            case 0x1B:
+            case 0x1C:
+            case 0x1D:
+            case 0x20:
+            case 0x21:
+            case 0x22:
+            case 0x23:
+            case 0x24:
+            case 0x25:
+            case 0x28:
+            case 0x29:
+            case 0x2A:
+            case 0x2B:
+            case 0x2C:
+            case 0x2D:
+            case 0x30:
+            case 0x31:
+            case 0x32:
+            case 0x33:
+            case 0x34:
+            case 0x35:
+            case 0x38:
+            case 0x39:
+            case 0x3A:
+            case 0x3B:
+            case 0x3C:
+            case 0x3D:
+                modrm = op.modrm;
+                int opsz = 8 << (opcode & 1);
+                int opc = opcode >> 3;
+                // rm is the destination
+                switch (opcode >> 1 & 3) {
+                    // 0 and 1: r/m, r
+                    case 0:
+                        rm = resolve_rm(modrm);
+                        op1 = get_operand(opsz, rm);
+                        op2 = read_reg(opsz, modrm);
+                        break;
+                    // 2 and 3: r, r/m
+                    case 1:
+                        rm = RM_REGISTER | (modrm >> 3 & 7);
+                        op1 = get_operand(opsz, rm);
+                        op2 = read_rm(opsz, modrm);
+                        break;
+                    // 4 and 5: al, ib
+                    case 2:
+                        rm = RM_REGISTER | AX;
+                        op1 = get_operand(opsz, rm);
+                        op2 = op.imm;
+                        break;
+                    // 6 and 7: Invalid
+                    default:
+                        throw new Error("Unexpected opcode: " + opcode);
+                }
+                res = run_arith(opsz, opc, op1, op2);
+                if (opc != 7) {
+                    set_operand(opsz, rm, res);
+                }
+                return;
+            case 0x06:
+                push16(es);
+                return;
+            case 0x07:
+                es = pop16();
+                return;
+            case 0x0E:
+                push16(cs);
+                return;
+            case 0x0F:
+                cs = pop16();
+                return;
+            case 0x16:
+                push16(ss);
+                return;
+            case 0x17:
+                ss = pop16();
+                interrupt_shadow = instructions;
+                return;
+            case 0x1E:
+                push16(ds);
+                return;
+            case 0x1F:
+                ds = pop16();
+                return;
+            case 0x27: {
+                // https://www.felixcloutier.com/x86/DAA.html
+                resolve_flags();
+                int old_al = get_reg8(AL);
+                int al = old_al;
+                boolean old_cf = cf;
+                cf = false;
+                if (((al & 15) > 9) || af) {
+                    al += 6;
+                    cf = old_cf || (al > 255); // al > 255 is carry out
+                    al &= 0xFF;
+                    af = true;
+                } else {
+                    af = false;
+                }
+                if ((old_al > 0x99) || old_cf) {
+                    al = (al + 0x60) & 0xFF;
+                    cf = true;
+                } else {
+                    cf = false;
+                }
+                set_reg8(AL, al);
+                this.set_zf_pf_sf(al, 8);
+                of = false; // ?
+                return;
+            }
+            case 0x2F: {// https://www.felixcloutier.com/x86/DAS.html
+                resolve_flags();
+                int old_al = get_reg8(AL);
+                int al = old_al;
+                boolean old_cf = cf;
+
+                cf = false;
+                if (((al & 15) > 9) || af) {
+                    al -= 6;
+                    cf = old_cf || (al < 0); // al < 0 is carry out
+                    al &= 0xFF;
+                    af = true;
+                } else {
+                    af = false;
+                }
+                if ((old_al > 0x99) || old_cf) {
+                    al = (al - 0x60) & 0xFF;
+                    cf = true;
+                } else {
+                    cf = false;
+                }
+                this.set_zf_pf_sf(al, 8);
+                of = false; // ?
+                set_reg8(AL, al);
+                return;
+            }
+            case 0x37:
+                // https://www.felixcloutier.com/x86/AAA.html
+                resolve_flags();
+                boolean dddd = af;
+                if (((get_reg8(AL) & 15) > 9) || af) {
+                    if (this.architecture == 8086) {
+                        set_reg8(AL, get_reg8(AL) + 6);
+                        set_reg8(AH, get_reg8(AH) + 1);
                     } else {
-                        af = false;
-                        cf = false;
-                        // I think?
-                        this.set_zf_pf_sf(registers[AX], 16);
+                        registers[AX] = (registers[AX] + 0x106) & 0xFFFF;
                     }
-                    of = false; // according to native
+                    af = true;
+                    cf = true;
+
+                    // According to native?
+                    zf = false;
+                    sf = false;
+                } else {
+                    af = false;
+                    cf = false;
+                    // I think?
+                    this.set_zf_pf_sf(registers[AX], 16);
+                }
+                of = false; // according to native
+                set_reg8(AL, 0x0F & get_reg8(AL));
+                return;
+            case 0x3F:
+                // https://www.felixcloutier.com/x86/AAS.html
+                resolve_flags();
+                if (((get_reg8(AL) & 15) > 9) || af) {
+                    registers[AX] = (registers[AX] - 0x106) & 0xFFFF;
+                    set_reg8(AH, get_reg8(AH) - 1);
+                    af = true;
+                    cf = true;
+                    set_reg8(AL, 0x0F & get_reg8(AL));
+                } else {
+                    af = false;
+                    cf = false;
                     set_reg8(AL, 0x0F & get_reg8(AL));
-                    return;
-                case 0x3E:
-                    current_sreg = ds;
-                    continue;
-                case 0x3F:
-                    // https://www.felixcloutier.com/x86/AAS.html
-                    if (((get_reg8(AL) & 15) > 9) || af) {
-                        registers[AX] = (registers[AX] - 0x106) & 0xFFFF;
-                        set_reg8(AH, get_reg8(AH) - 1);
-                        af = true;
-                        cf = true;
-                        set_reg8(AL, 0x0F & get_reg8(AL));
-                    } else {
-                        af = false;
-                        cf = false;
-                        set_reg8(AL, 0x0F & get_reg8(AL));
-                    }
-                    return;
-                case 0x40:
-                case 0x41:
-                case 0x42:
-                case 0x43:
-                case 0x44:
-                case 0x45:
-                case 0x46:
-                case 0x47: {
-                    boolean saved_cf = cf;
-                    op1 = registers[opcode & 7];
-                    res = (op1 + 1);
-                    set_add_flags(16, op1, 1, res);
-                    cf = saved_cf;
-                    registers[opcode & 7] = res & 0xFFFF;
-                    return;
                 }
-                case 0x48:
-                case 0x49:
-                case 0x4A:
-                case 0x4B:
-                case 0x4C:
-                case 0x4D:
-                case 0x4E:
-                case 0x4F: {
-                    boolean saved_cf = cf;
-                    op1 = registers[opcode & 7];
-                    res = (op1 - 1);
-                    set_sub_flags(16, op1, 1, res);
-                    cf = saved_cf;
-                    registers[opcode & 7] = res & 0xFFFF;
-                    return;
+                return;
+            case 0x40:
+            case 0x41:
+            case 0x42:
+            case 0x43:
+            case 0x44:
+            case 0x45:
+            case 0x46:
+            case 0x47:
+                inc_reg16(opcode & 7);
+                return;
+            case 0x48:
+            case 0x49:
+            case 0x4A:
+            case 0x4B:
+            case 0x4C:
+            case 0x4D:
+            case 0x4E:
+            case 0x4F:
+                dec_reg16(opcode & 7);
+                return;
+            case 0x50:
+            case 0x51:
+            case 0x52:
+            case 0x53:
+            //case 0x54:
+            case 0x55:
+            case 0x56:
+            case 0x57:
+                push16(registers[opcode & 7]);
+                return;
+            case 0x54: // PUSH SP
+                if (architecture == 8086) {
+                    registers[SP] = (registers[SP] - 2) & 0xFFFF;
+                    ww(ss, registers[SP], registers[SP]); // Pushes post sp-modified ESP
+                } else {
+                    push16(registers[SP]);
                 }
-                case 0x50:
-                case 0x51:
-                case 0x52:
-                case 0x53:
-                //case 0x54:
-                case 0x55:
-                case 0x56:
-                case 0x57:
-                    push16(registers[opcode & 7]);
-                    return;
-                case 0x54: // PUSH SP
-                    if (architecture == 8086) {
-                        registers[SP] = (registers[SP] - 2) & 0xFFFF;
-                        ww(ss, registers[SP], registers[SP]); // Pushes post sp-modified ESP
-                    } else {
-                        push16(registers[SP]);
-                    }
-                    return;
-                case 0x58:
-                case 0x59:
-                case 0x5A:
-                case 0x5B:
-                case 0x5C:
-                case 0x5D:
-                case 0x5E:
-                case 0x5F:
-                    registers[opcode & 7] = pop16();
-                    return;
-                case 0x60:
-                case 0x70: // JO
-                    op1 = (byte) next_byte(); // -127 ... 128
-                    if (of) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x61:
-                case 0x71: // JNO
-                    op1 = (byte) next_byte();
-                    if (!of) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x62:
-                case 0x72: // JC
-                    op1 = (byte) next_byte();
-                    if (cf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x63:
-                case 0x73: // JNC
-                    op1 = (byte) next_byte();
-                    if (cf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x64:
-                case 0x74: // JZ
-                    op1 = (byte) next_byte();
-                    if (zf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x65:
-                case 0x75: // JNZ
-                    op1 = (byte) next_byte();
-                    if (!zf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x66:
-                case 0x76: // JBE
-                    op1 = (byte) next_byte();
-                    if (cf || zf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x67:
-                case 0x77: // JNBE
-                    op1 = (byte) next_byte();
-                    if (!cf && !zf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x68:
-                case 0x78: // JS
-                    op1 = (byte) next_byte();
-                    if (sf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x69:
-                case 0x79: // JNS
-                    op1 = (byte) next_byte();
-                    if (!sf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x6A:
-                case 0x7A: // JP
-                    op1 = (byte) next_byte();
-                    if (pf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x6B:
-                case 0x7B: // JNP
-                    op1 = (byte) next_byte();
-                    if (!pf) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x6C:
-                case 0x7C: // JL
-                    op1 = (byte) next_byte();
-                    if (sf != of) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x6D:
-                case 0x7D: // JNL
-                    op1 = (byte) next_byte();
-                    if (sf == of) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x6E:
-                case 0x7E: // JLE
-                    op1 = (byte) next_byte();
-                    if (zf || sf != of) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x6F:
-                case 0x7F: // JNLE
-                    op1 = (byte) next_byte();
-                    if (!zf && sf == of) {
-                        eip += op1;
-                    }
-                    return;
-                case 0x80:
-                case 0x82:
-                    modrm = next_byte();
-                    op1 = read_rm8(modrm);
-                    op2 = (byte) next_byte();
-                    res = this.run_arith(8, modrm >> 3 & 7, op1, op2);
-                    if ((modrm >> 3 & 7) == 7) {
-                        return;
-                    }
-                    write_rm8_IMM(modrm, res);
-                    return;
-                case 0x81:
-                case 0x83:
-                    modrm = next_byte();
-                    op1 = read_rm16(modrm);
-                    if ((opcode & 2) == 2) {
-                        op2 = (byte) next_byte(); // 83
-                    } else {
-                        op2 = next_word(); // 81
-                    }
-                    res = this.run_arith(16, modrm >> 3 & 7, op1, op2);
-                    if ((modrm >> 3 & 7) == 7) {
-                        return;
-                    }
-                    write_rm16_IMM(modrm, res);
-                    return;
-                case 0x84: // TEST8
-                    modrm = next_byte();
-                    op1 = read_rm8(modrm);
-                    op2 = read_reg8(modrm);
-                    res = op1 & op2;
-                    set_bit_flags(8, op1, op2, res);
-                    return;
-                case 0x85:
-                    modrm = next_byte();
-                    op1 = read_rm16(modrm);
-                    op2 = read_reg16(modrm);
-                    res = op1 & op2;
-                    set_bit_flags(16, op1, op2, res);
-                    return;
-                case 0x86: { // XCHG
-                    modrm = next_byte();
-                    op1 = read_rm8(modrm);
-                    op2 = read_reg8(modrm);
-                    write_reg8(modrm, op1);
-                    write_rm8(modrm, op2);
-                    return;
+                return;
+            case 0x58:
+            case 0x59:
+            case 0x5A:
+            case 0x5B:
+            case 0x5C:
+            case 0x5D:
+            case 0x5E:
+            case 0x5F:
+                registers[opcode & 7] = pop16();
+                return;
+            case 0x60:
+            case 0x70: // JO
+                op1 = (byte) op.imm; // -127 ... 128
+                if (get_of()) {
+                    eip += op1;
                 }
-                case 0x87: { // XCHG
-                    modrm = next_byte();
-                    op1 = read_rm16(modrm);
-                    op2 = read_reg16(modrm);
-                    write_reg16(modrm, op1);
-                    write_rm16(modrm, op2);
-                    return;
+                return;
+            case 0x61:
+            case 0x71: // JNO
+                op1 = (byte) op.imm;
+                if (!get_of()) {
+                    eip += op1;
                 }
-                case 0x88: // MOV
-                    modrm = next_byte();
-                    write_rm8(modrm, read_reg8(modrm));
-                    return;
-                case 0x89: // MOV
-                    modrm = next_byte();
-                    write_rm16(modrm, read_reg16(modrm));
-                    return;
-                case 0x8A: // MOV
-                    modrm = next_byte();
-                    write_reg8(modrm, read_rm8(modrm));
-                    return;
-                case 0x8B: // MOV
-                    modrm = next_byte();
-                    write_reg16(modrm, read_rm16(modrm));
-                    return;
-                case 0x8C:
-                    modrm = next_byte();
-                    switch (modrm >> 3 & 7) {
-                        case CS:
-                            op1 = cs;
-                            break;
-                        case DS:
-                            op1 = ds;
-                            break;
-                        case ES:
-                            op1 = es;
-                            break;
-                        case SS:
-                            op1 = ss;
-                            break;
-                        default:
-                            throw new IllegalStateException("Unknown segment register\n");
-                    }
-                    write_rm16(modrm, op1);
-                    return;
-                case 0x8D: // LEA
-                    modrm = next_byte();
-                    if (modrm >> 6 == 3) {
-                        throw new IllegalStateException("LEA with mod=3!");
-                    }
-                    write_reg16(modrm, decode_modrm(modrm));
-                    return;
-                case 0x8E:
-                    modrm = next_byte();
-                    op2 = read_rm16(modrm);
-                    System.out.printf("%04x\n", op2);
-                    switch (modrm >> 3 & 7) {
-                        case CS:
-                            cs = op2;
-                            break;
-                        case DS:
-                            ds = op2;
-                            break;
-                        case ES:
-                            es = op2;
-                            break;
-                        case SS:
-                            ss = op2;
-                            break;
-                        default:
-                            throw new IllegalStateException("Unknown segment register\n");
-                    }
-                    return;
-                case 0x8F:
-                    modrm = next_byte();
-                    if ((modrm & 7) != 0) {
-                        throw new IllegalStateException("PUSH.rm [8F] is not zero!");
-                    }
-                    write_rm16(modrm, pop16());
-                    return;
-                case 0x90: // NOP
-                    return;
-                case 0x91:
-                case 0x92:
-                case 0x93:
-                case 0x94:
-                case 0x95:
-                case 0x96:
-                case 0x97: // XCHG
-                    op1 = opcode & 7;
-                    registers[AX] ^= registers[op1];
-                    registers[op1] ^= registers[AX];
-                    registers[AX] ^= registers[op1];
-                    return;
-                case 0x98: // CBW
-                    // https://www.felixcloutier.com/x86/CBW:CWDE:CDQE.html
-                    registers[AX] = ((byte) registers[AX]) & 0xFFFF;
-                    return;
-                case 0x99: // CWD
-                    // http://www.c-jump.com/CIS77/MLabs/M11arithmetic/M11_0110_cbw_cwd_cdq.htm
-                    registers[DX] = (registers[AX] & 0x8000) == 0 ? 0xFFFF : 0;
-                    return;
-                case 0x9A: {
-                    // CALLF
-                    int temp = cs;
-                    int temp1 = eip;
-                    push16(temp1);
-
-                    int temp3 = next_word();
-                    int temp4 = next_word();
-                    eip = temp3;
-                    cs = temp4;
-                    return;
+                return;
+            case 0x62:
+            case 0x72: // JC
+                op1 = (byte) op.imm;
+                if (get_cf()) {
+                    eip += op1;
                 }
-                case 0x9B: // WAIT
-                    return;
-                case 0x9C: // PUSHF
-                    push16(get_eflags());
-                    return;
-                case 0x9D:
-                    set_eflags(pop16());
-                    return;
-                case 0x9E: // SAHF
-                    op1 = get_reg8(AH) & 0xD5; // Mask out flags we do not need
-                    op2 = get_eflags() & ~0xFF; // Remove lower bits
-                    set_eflags(op1 | op2);
-                    return;
-                case 0x9F: // LAHF
-                    op1 = get_reg8(AH) & 0x2A; // Select the bits we will keep
-                    op2 = get_eflags() & 0xD5; // Only the bits we need
-                    set_reg8(AH, op1 | op2);
-                    return;
-                case 0xA0:
-                    set_reg8(AL, read_byte(seg_translation_internal(ds, next_word())));
-                    return;
-                case 0xA1:
-                    set_reg16(AX, read_word(seg_translation_internal(ds, next_word())));
-                    return;
-                case 0xA2:
-                    write_byte(seg_translation_internal(ds, next_word()), get_reg8(AL));
-                    return;
-                case 0xA3:
-                    write_word(seg_translation_internal(ds, next_word()), get_reg16(AX));
-                    return;
-                case 0xA4:
-                    switch (rep) {
-                        case NO_REP_PREFIX:
-                            wb(es, registers[DI], rb(ds, registers[SI]));
-                            if ((additional_eflags_bits & DF) == 0) {
-                                registers[DI] = (registers[DI] + 1) & 0xFFFF;
-                                registers[SI] = (registers[SI] + 1) & 0xFFFF;
-                            } else {
-                                registers[DI] = (registers[DI] - 1) & 0xFFFF;
-                                registers[SI] = (registers[SI] - 1) & 0xFFFF;
-                            }
-                            break;
-                        case REPNZ:
-                        case REPZ:
-                            int ofz = (additional_eflags_bits & DF) == 0 ? 1 : -1;
-                            for (; registers[CX] != 0; registers[CX] = (registers[CX] - 1) & 0xFFFF) {
-                                wb(es, registers[DI], rb(ds, registers[SI]));
-                                registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                                registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                            }
-                            break;
-                    }
-                    return;
-                case 0xA5:
-                    switch (rep) {
-                        case NO_REP_PREFIX:
-                            ww(es, registers[DI], rw(ds, registers[SI]));
-                            if ((additional_eflags_bits & DF) == 0) {
-                                registers[DI] = (registers[DI] + 2) & 0xFFFF;
-                                registers[SI] = (registers[SI] + 2) & 0xFFFF;
-                            } else {
-                                registers[DI] = (registers[DI] - 2) & 0xFFFF;
-                                registers[SI] = (registers[SI] - 2) & 0xFFFF;
-                            }
-                            break;
-                        case REPNZ:
-                        case REPZ:
-                            int ofz = (additional_eflags_bits & DF) == 0 ? 2 : -2;
-                            for (; registers[CX] != 0; registers[CX] = (registers[CX] - 1) & 0xFFFF) {
-                                ww(es, registers[DI], rw(ds, registers[SI]));
-                                registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                                registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                            }
-                            break;
-                    }
-                    return;
-                case 0xA6: {
-                    int ofz = (additional_eflags_bits & DF) == 0 ? 1 : -1;
-                    switch (rep) {
-                        case 0:
-                            op1 = rb(ds, registers[SI]);
-                            op2 = rb(es, registers[DI]);
-                            res = op1 - op2;
-                            registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                            registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                            set_sub_flags(8, op1, op2, res);
-                            break;
-                        case 1:
-                        case 2:
-                            boolean done = (rep & 2) == 2;
-                            for (; registers[CX] != 0; registers[CX] = (registers[CX] - 1) & 0xFFFF) {
-                                op1 = rb(ds, registers[SI]);
-                                op2 = rb(es, registers[DI]);
-                                res = op1 - op2;
-                                registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                                registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                                if ((res == 0) == done) {
-                                    set_sub_flags(8, op1, op2, res);
-                                    return;
-                                }
-                            }
-                            return;
-                    }
-                    return;
+                return;
+            case 0x63:
+            case 0x73: // JNC
+                op1 = (byte) op.imm;
+                if (!get_cf()) {
+                    eip += op1;
                 }
-                case 0xA7: {
-                    int ofz = (additional_eflags_bits & DF) == 0 ? 2 : -2;
-                    switch (rep) {
-                        case 0:
-                            op1 = rw(ds, registers[SI]);
-                            op2 = rw(es, registers[DI]);
-                            res = op1 - op2;
-                            registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                            registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                            set_sub_flags(16, op1, op2, res);
-                            break;
-                        case 1:
-                        case 2:
-                            boolean done = (rep & 2) == 2;
-                            for (; registers[CX] != 0; registers[CX] = (registers[CX] - 1) & 0xFFFF) {
-                                op1 = rw(ds, registers[SI]);
-                                op2 = rw(es, registers[DI]);
-                                res = op1 - op2;
-                                registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                                registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                                if ((res == 0) == done) {
-                                    set_sub_flags(16, op1, op2, res);
-                                    return;
-                                }
-                            }
-                            return;
-                    }
-                    return;
+                return;
+            case 0x64:
+            case 0x74: // JZ
+                op1 = (byte) op.imm;
+                if (get_zf()) {
+                    eip += op1;
                 }
-                case 0xA8: // TEST
-                    op1 = get_reg8(AL);
-                    op2 = next_byte();
-                    res = op1 & op2;
-                    set_bit_flags(8, op1, op2, res);
-                    return;
-                case 0xA9: // TEST
-                    op1 = get_reg16(AX);
-                    op2 = next_word();
-                    res = op1 & op2;
-                    set_bit_flags(16, op1, op2, res);
-                    return;
-                case 0xAA: {// STOSB
-                    int ofz = (additional_eflags_bits & DF) == 0 ? 1 : -1;
-                    switch (rep) {
-                        case 0:
-                            wb(es, registers[DI], get_reg8(AL));
-                            registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                            break;
-                        case 1:
-                        case 2:
-                            int al_value = get_reg8(AL);
-                            for (; registers[CX] != 0; registers[CX] = (registers[CX] - 1) & 0xFFFF) {
-                                wb(es, registers[DI], al_value);
-                                registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                            }
-                            break;
-                    }
-                    return;
+                return;
+            case 0x65:
+            case 0x75: // JNZ
+                op1 = (byte) op.imm;
+                if (!get_zf()) {
+                    eip += op1;
                 }
-                case 0xAB: {// STOSW
-                    int ofz = (additional_eflags_bits & DF) == 0 ? 2 : -2;
-                    switch (rep) {
-                        case 0:
-                            ww(es, registers[DI], get_reg16(AX));
-                            registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                            break;
-                        case 1:
-                        case 2:
-                            int ax_value = get_reg16(AX);
-                            for (; registers[CX] != 0; registers[CX] = (registers[CX] - 1) & 0xFFFF) {
-                                ww(es, registers[DI], ax_value);
-                                registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                            }
-                            break;
-                    }
-                    return;
+                return;
+            case 0x66:
+            case 0x76: // JBE
+                op1 = (byte) op.imm;
+                if (get_cf() || get_zf()) {
+                    eip += op1;
                 }
-                case 0xAC: // LODSB
-                    set_reg8(AL, rb(ds, registers[SI]));
-                    if ((additional_eflags_bits & DF) == 0) {
-                        registers[SI] = (registers[SI] + 1) & 0xFFFF;
-                    } else {
-                        registers[SI] = (registers[SI] - 1) & 0xFFFF;
-                    }
-                    return;
-                case 0xAD: // LODSW
-                    set_reg16(AX, rw(ds, registers[SI]));
-                    if ((additional_eflags_bits & DF) == 0) {
-                        registers[SI] = (registers[SI] + 2) & 0xFFFF;
-                    } else {
-                        registers[SI] = (registers[SI] - 2) & 0xFFFF;
-                    }
-                    return;
-                case 0xAE: {// SCASB
-                    int ofz = (additional_eflags_bits & DF) == 0 ? 1 : -1;
-                    int al_val = get_reg8(AL);
-                    switch (rep) {
-                        case 0:
-                            op1 = rb(ds, registers[SI]);
-                            op2 = al_val;
-                            res = op1 - op2;
-                            registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                            registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                            set_sub_flags(8, op1, op2, res);
-                            break;
-                        case 1:
-                        case 2:
-                            boolean done = (rep & 2) == 2;
-                            for (; registers[CX] != 0; registers[CX] = (registers[CX] - 1) & 0xFFFF) {
-                                op1 = rb(ds, registers[SI]);
-                                op2 = al_val;
-                                res = op1 - op2;
-                                registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                                registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                                if ((res == 0) == done) {
-                                    set_sub_flags(8, op1, op2, res);
-                                    return;
-                                }
-                            }
-                            return;
-                    }
-                    return;
+                return;
+            case 0x67:
+            case 0x77: // JNBE
+                op1 = (byte) op.imm;
+                if (!get_cf() && !get_zf()) {
+                    eip += op1;
                 }
-                case 0xAF: {// SCASW
-                    int ofz = (additional_eflags_bits & DF) == 0 ? 2 : -2;
-                    int ax_val = get_reg16(AX);
-                    switch (rep) {
-                        case 0:
-                            op1 = rw(ds, registers[SI]);
-                            op2 = ax_val;
-                            res = op1 - op2;
-                            registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                            registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                            set_sub_flags(16, op1, op2, res);
-                            break;
-                        case 1:
-                        case 2:
-                            boolean done = (rep & 2) == 2;
-                            for (; registers[CX] != 0; registers[CX] = (registers[CX] - 1) & 0xFFFF) {
-                                op1 = rw(ds, registers[SI]);
-                                op2 = ax_val;
-                                res = op1 - op2;
-                                registers[DI] = (registers[DI] + ofz) & 0xFFFF;
-                                registers[SI] = (registers[SI] + ofz) & 0xFFFF;
-                                if ((res == 0) == done) {
-                                    set_sub_flags(16, op1, op2, res);
-                                    return;
-                                }
-                            }
-                            return;
-                    }
-                    return;
+                return;
+            case 0x68:
+            case 0x78: // JS
+                op1 = (byte) op.imm;
+                if (get_sf()) {
+                    eip += op1;
                 }
-                case 0xB0:
-                case 0xB1:
-                case 0xB2:
-                case 0xB3:
-                case 0xB4:
-                case 0xB5:
-                case 0xB6:
-                case 0xB7: // MOV
-                    set_reg8(opcode & 7, next_byte());
-                    return;
-                case 0xB8:
-                case 0xB9:
-                case 0xBA:
-                case 0xBB:
-                case 0xBC:
-                case 0xBD:
-                case 0xBE:
-                case 0xBF: // MOV
-                    set_reg16(opcode & 7, next_word());
-                    return;
-                case 0xC0:
-                case 0xC2: // RET imm
-                    op1 = next_word();
-                    eip = pop16();
-                    registers[SP] = (registers[SP] + op1) & 0xFFFF;
-                    return;
-                case 0xC1:
-                case 0xC3: // RET normal
-                    eip = pop16();
-                    return;
-                case 0xC4: // LES
-                    modrm = next_byte();
-                    if (modrm >> 6 == 3) {
-                        throw new IllegalStateException("LES w/ mod=3");
-                    }
-                    op1 = decode_modrm(modrm);
-                    write_reg16(modrm, read_word(op1));
-                    es = read_word(op1 + 2);
-                    return;
-                case 0xC5: // LDS
-                    modrm = next_byte();
-                    if (modrm >> 6 == 3) {
-                        throw new IllegalStateException("LES w/ mod=3");
-                    }
-                    op1 = decode_modrm(modrm);
-                    write_reg16(modrm, read_word(op1));
-                    ds = read_word(op1 + 2);
-                    return;
-                case 0xC6: // MOV
-                    modrm = next_byte();
-                    if (modrm >> 6 == 3) {
-                        throw new IllegalStateException("C6/C7 w/ mod=3");
-                    }
-                    read_rm8(modrm);
-                    write_rm8_IMM(modrm, next_byte()); // TODO: Massive bug here
-                    return;
-                case 0xC7: // MOV
-                    modrm = next_byte();
-                    if (modrm >> 6 == 3) {
-                        throw new IllegalStateException("C6/C7 w/ mod=3");
-                    }
-                    read_rm8(modrm);
-                    write_rm16_IMM(modrm, next_word());
-                    return;
-                case 0xC8: {
-                    int tmp = next_word();
-                    int tmp1 = next_byte();
-                    int tmp2 = tmp1 & 0x1F;
-                    push16(registers[BP]);
-                    int tmp3 = registers[SP];
-                    if (tmp2 > 0) {
-                        for (int i = 1; i < tmp2; i++) {
-                            registers[BP] = (registers[BP] - 2) & 0xFFFF;
-                            push16(rw(ss, registers[BP]));
-                        }
-                        push16(tmp3);
-                    }
-                    registers[BP] = tmp3;
-                    registers[SP] = (registers[SP] - tmp) & 0xFFFF;
-                    return;
+                return;
+            case 0x69:
+            case 0x79: // JNS
+                op1 = (byte) op.imm;
+                if (!get_sf()) {
+                    eip += op1;
                 }
-                case 0xC9: // LEAVE
-                    registers[SP] = registers[BP];
-                    registers[BP] = pop16();
-                    return;
-                case 0xCA: { // RETF
-                    int tmp = next_word();
-                    eip = pop16();
-                    cs = pop16();
-                    registers[SP] = (registers[SP] + tmp + 2) & 0xFFFF;
-                    return;
+                return;
+            case 0x6A:
+            case 0x7A: // JP
+                op1 = (byte) op.imm;
+                if (get_pf()) {
+                    eip += op1;
                 }
-                case 0xCB: { // RETF
-                    eip = pop16();
-                    cs = pop16();
-                    return;
+                return;
+            case 0x6B:
+            case 0x7B: // JNP
+                op1 = (byte) op.imm;
+                if (!get_pf()) {
+                    eip += op1;
                 }
-                case 0xCC: { // INT3
-                    interrupt(3);
-                    return;
+                return;
+            case 0x6C:
+            case 0x7C: // JL
+                op1 = (byte) op.imm;
+                if (get_sf() != get_of()) {
+                    eip += op1;
                 }
-                case 0xCD: { // INT
-                    op1 = next_byte();
-                    interrupt(op1);
-                    return;
+                return;
+            case 0x6D:
+            case 0x7D: // JNL
+                op1 = (byte) op.imm;
+                if (get_sf() == get_of()) {
+                    eip += op1;
                 }
-                case 0xCE: { // INTO
-                    op1 = next_byte();
-                    if (of) {
-                        interrupt(op1);
-                    }
-                    return;
+                return;
+            case 0x6E:
+            case 0x7E: // JLE
+                op1 = (byte) op.imm;
+                if (get_zf() || get_sf() != get_of()) {
+                    eip += op1;
                 }
-                case 0xCF: { // IRET
-                    eip = pop16();
-                    cs = pop16();
-                    set_eflags(pop16());
-                    return;
+                return;
+            case 0x6F:
+            case 0x7F: // JNLE
+                op1 = (byte) op.imm;
+                if (!get_zf() && get_sf() == get_of()) {
+                    eip += op1;
                 }
-                case 0xD0:
-                case 0xD2: {
-                    modrm = next_byte();
-                    op1 = read_rm8(modrm);
-                    op2 = (opcode & 2) == 2 ? get_reg8(CL) : 1;
-                    if (op2 == 0) {
-                        return; // Nothing is modified if cnt == 0
-                    }
-                    res = 0;
-                    switch (modrm >> 3 & 7) {
-                        case 0: // ROL
-                            if (architecture == 80186) {
-                                op2 &= 7;
-                            }
-                            res = op1 << op2 | op1 >>> (8 - op2);
-                            cf = (op1 >> 7 & 1) != 0;
-                            of = (((op1 >> 7) ^ (op1 >> 6)) & 1) != 0;
-                            break;
-                        case 1: // ROR
-                            if (architecture == 80186) {
-                                op2 &= 7;
-                            }
-                            res = op1 >>> op2 | op1 << (8 - op2);
-                            cf = (op1 >> 7 & 1) != 0;
-                            of = (((res >> 7) ^ (res >> 6)) & 1) != 0;
-                            break;
-                        case 2: // RCL
-                            if (architecture == 80186) {
-                                op1 %= 9;
-                            }
-                            res = (op1 << op2) | (cf ? 1 : 0) << (op2 - 1) | op1 >>> (9 - op2);
-                            cf = (op1 >> 8 & 1) != 0;
-                            of = ((op1 >> 7) ^ (cf ? 1 : 0)) != 0;
-                            break;
-                        case 3: // RCR
-                            if (architecture == 80186) {
-                                op1 %= 9;
-                            }
-                            res = (op1 >>> op2) | (cf ? 1 : 0) << (8 - op2) | op1 << (9 - op2);
-                            cf = (op1 >> 8 & 1) != 0;
-                            of = (((res >> 7) ^ (res >> 6)) & 1) != 0;
-                            break;
-                        case 4: // SHL
-                        case 6: // SAL
-                            if (architecture == 80186) {
-                                op1 &= 7;
-                            }
-                            res = op1 << op2;
-                            cf = (op1 >> (8 - op2) & 1) != 0;
-                            of = ((res >>> 7) ^ (cf ? 1 : 0)) != 0;
-                            this.set_zf_pf_sf(res, 8);
-                            af = false;
-                            break;
-                        case 5: // SHR
-                            if (architecture == 80186) {
-                                op1 &= 7;
-                            }
-                            res = op1 >>> op2;
-                            cf = ((op1 & (1 << (op2 - 1))) >> (op2 - 1)) != 0;
-                            of = (res << 1 ^ res) >> 7 != 0;
-                            this.set_zf_pf_sf(res, 8);
-                            af = false;
-                            break;
-                        case 7: // SAR
-                            if (architecture == 80186) {
-                                op1 &= 7;
-                            }
-                            res = (byte) op1 >> op2;
-                            cf = (op1 >> op2 - 1 & 0x1) != 0;
-                            of = false;
-                            this.set_zf_pf_sf(res, 8);
-                            af = false;
-                            break;
-                        default:
-                            throw new Error("Invalid DX opcode!");
-                    }
-                    write_rm8(modrm, res);
+                return;
+            case 0x80:
+            case 0x82:
+                modrm = op.modrm;
+                rm = resolve_rm(modrm);
+                op1 = get_operand8(rm);
+                op2 = (byte) op.imm;
+                res = this.run_arith(8, modrm >> 3 & 7, op1, op2);
+                if ((modrm >> 3 & 7) == 7) {
                     return;
                 }
-                case 0xD1:
-                case 0xD3: {
-                    modrm = next_byte();
-                    op1 = read_rm16(modrm);
-                    op2 = (opcode & 2) == 2 ? get_reg8(CL) : 1;
-                    if (op2 == 0) {
-                        return; // Nothing is modified if cnt == 0
-                    }
-                    res = 0;
-                    switch (modrm >> 3 & 7) {
-                        case 0: // ROL
-                            if (architecture == 80186) {
-                                op2 &= 15;
-                            }
-                            res = op1 << op2 | op1 >>> (16 - op2);
-                            cf = (op1 >> 15 & 1) != 0;
-                            of = (((op1 >> 15) ^ (op1 >> 14)) & 1) != 0;
-                            break;
-                        case 1: // ROR
-                            if (architecture == 80186) {
-                                op2 &= 15;
-                            }
-                            res = op1 >>> op2 | op1 << (16 - op2);
-                            cf = (op1 >> 15 & 1) != 0;
-                            of = (((res >> 15) ^ (res >> 14)) & 1) != 0;
-                            break;
-                        case 2: // RCL
-                            if (architecture == 80186) {
-                                op1 %= 17;
-                            }
-                            res = (op1 << op2) | (cf ? 1 : 0) << (op2 - 1) | op1 >>> (16 - op2);
-                            cf = (op1 >> 16 & 1) != 0;
-                            of = ((op1 >> 15) ^ (cf ? 1 : 0)) != 0;
-                            break;
-                        case 3: // RCR
-                            if (architecture == 80186) {
-                                op1 %= 17;
-                            }
-                            res = (op1 >>> op2) | (cf ? 1 : 0) << (16 - op2) | op1 << (17 - op2);
-                            cf = (op1 >> 16 & 1) != 0;
-                            of = (((res >> 15) ^ (res >> 14)) & 1) != 0;
-                            break;
-                        case 4: // SHL
-                        case 6: // SAL
-                            if (architecture == 80186) {
-                                op1 &= 15;
-                            }
-                            res = op1 << op2;
-                            cf = (op1 >> (16 - op2) & 1) != 0;
-                            of = ((res >>> 15) ^ (cf ? 1 : 0)) != 0;
-                            this.set_zf_pf_sf(res, 16);
-                            af = false;
-                            break;
-                        case 5: // SHR
-                            if (architecture == 80186) {
-                                op1 &= 15;
-                            }
-                            res = op1 >>> op2;
-                            cf = ((op1 & (1 << (op2 - 1))) >> (op2 - 1)) != 0;
-                            of = (res << 1 ^ res) >> 15 != 0;
-                            this.set_zf_pf_sf(res, 16);
-                            af = false;
-                            break;
-                        case 7: // SAR
-                            if (architecture == 80186) {
-                                op1 &= 7;
-                            }
-                            res = (short) op1 >> op2;
-                            cf = (op1 >> op2 - 1 & 0x1) != 0;
-                            of = false;
-                            this.set_zf_pf_sf(res, 16);
-                            af = false;
-                            break;
-                        default:
-                            throw new Error("Invalid DX opcode!");
-                    }
-                    write_rm16(modrm, res);
-                    return;
+                set_operand8(rm, res);
+                return;
+            case 0x81:
+            case 0x83:
+                modrm = op.modrm;
+                rm = resolve_rm(modrm);
+                op1 = get_operand16(rm);
+                if ((opcode & 2) == 2) {
+                    op2 = (byte) op.imm; // 83
+                } else {
+                    op2 = op.imm; // 81
                 }
-                case 0xD4: {
-                    // https://www.felixcloutier.com/x86/AAM.html
-                    int tempAL = get_reg8(AL);
-                    int i8 = next_byte();
-                    set_reg8(AH, tempAL / i8);
-                    set_reg8(AL, tempAL % i8);
-                    of = af = cf = false;
-                    this.set_zf_pf_sf(get_reg8(AL), 8);
+                res = this.run_arith(16, modrm >> 3 & 7, op1, op2);
+                if ((modrm >> 3 & 7) == 7) {
                     return;
                 }
-                case 0xD5: {
-                    // https://www.felixcloutier.com/x86/AAD.html
-                    int tempAL = get_reg8(AL);
-                    int tempAH = get_reg8(AH);
-                    int i8 = next_byte();
-                    set_reg8(AH, 0);
-                    set_reg8(AL, (tempAL + (tempAH * i8)) & 0xFF);
-                    //this.set_zf_pf_sf(get_reg8(AL), 8);
-                    this.set_add_flags(8, tempAL, (tempAH * i8), get_reg8(AL));
-                    return;
+                set_operand16(rm, res);
+                return;
+            case 0x84: // TEST8
+                modrm = op.modrm;
+                op1 = read_rm8(modrm);
+                op2 = read_reg8(modrm);
+                res = op1 & op2;
+                set_bit_flags(8, op1, op2, res);
+                return;
+            case 0x85:
+                modrm = op.modrm;
+                op1 = read_rm16(modrm);
+                op2 = read_reg16(modrm);
+                res = op1 & op2;
+                set_bit_flags(16, op1, op2, res);
+                return;
+            case 0x86: { // XCHG
+                modrm = op.modrm;
+                rm = resolve_rm(modrm);
+                op1 = get_operand8(rm);
+                op2 = read_reg8(modrm);
+                write_reg8(modrm, op1);
+                set_operand8(rm, op2);
+                return;
+            }
+            case 0x87: { // XCHG
+                modrm = op.modrm;
+                rm = resolve_rm(modrm);
+                op1 = get_operand16(rm);
+                op2 = read_reg16(modrm);
+                write_reg16(modrm, op1);
+                set_operand16(rm, op2);
+                return;
+            }
+            case 0x88: // MOV
+                modrm = op.modrm;
+                write_rm8(modrm, read_reg8(modrm));
+                return;
+            case 0x89: // MOV
+                modrm = op.modrm;
+                write_rm16(modrm, read_reg16(modrm));
+                return;
+            case 0x8A: // MOV
+                modrm = op.modrm;
+                write_reg8(modrm, read_rm8(modrm));
+                return;
+            case 0x8B: // MOV
+                modrm = op.modrm;
+                write_reg16(modrm, read_rm16(modrm));
+                return;
+            case 0x8C:
+                modrm = op.modrm;
+                switch (modrm >> 3 & 7) {
+                    case CS:
+                        op1 = cs;
+                        break;
+                    case DS:
+                        op1 = ds;
+                        break;
+                    case ES:
+                        op1 = es;
+                        break;
+                    case SS:
+                        op1 = ss;
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown segment register\n");
                 }
-                case 0xD6: { // SALC
-                    // http://www.rcollins.org/secrets/opcodes/SALC.html
-                    set_reg8(AL, cf ? 0xFF : 0);
-                    return;
+                write_rm16(modrm, op1);
+                return;
+            case 0x8D: // LEA
+                modrm = op.modrm;
+                if (modrm >> 6 == 3) {
+                    throw new IllegalStateException("LEA with mod=3!");
                 }
-                case 0xD7: {// XLAT
-                    set_reg8(AL, rb(ds, registers[BX] + get_reg8(AL)));
-                    return;
+                write_reg16(modrm, decode_modrm(modrm));
+                return;
+            case 0x8E:
+                modrm = op.modrm;
+                op2 = read_rm16(modrm);
+                switch (modrm >> 3 & 7) {
+                    case CS:
+                        cs = op2;
+                        break;
+                    case DS:
+                        ds = op2;
+                        break;
+                    case ES:
+                        es = op2;
+                        break;
+                    case SS:
+                        ss = op2;
+                        interrupt_shadow = instructions;
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown segment register\n");
                 }
-                case 0xD8:
-                case 0xD9:
-                case 0xDA:
-                case 0xDB:
-                case 0xDC:
-                case 0xDE:
-                case 0xDF:
-                    if (fpu_enabled == 1) {
-                        fpu.op(opcode, next_byte());
-                    } else {
-                        System.err.println("Ignoring FPU operation!");
-                        next_byte(); // ModR/M
-                    }
-                    return;
-                case 0xE0:
-                    // LOOPNZ
-                    op1 = next_byte();
-                    registers[CX] = (registers[CX] - 1) & 0xFFFF;
-                    if (registers[CX] != 0 && !zf) {
-                        eip = (eip + (byte) op1) & 0xFFFF;
-                    }
-                    return;
-                case 0xE1:
-                    // LOOPZ
-                    op1 = next_byte();
-                    registers[CX] = (registers[CX] - 1) & 0xFFFF;
-                    if (registers[CX] != 0 && zf) {
-                        eip = (eip + (byte) op1) & 0xFFFF;
-                    }
-                    return;
-                case 0xE2:
-                    // LOOPZ
-                    op1 = next_byte();
-                    registers[CX] = (registers[CX] - 1) & 0xFFFF;
-                    if (registers[CX] != 0) {
-                        eip = (eip + (byte) op1) & 0xFFFF;
-                    }
-                    return;
-                case 0xE3:
-                    // LOOPZ
-                    op1 = next_byte();
-                    if (registers[CX] == 0) {
-                        eip = (eip + (byte) op1) & 0xFFFF;
+                return;
+            case 0x8F:
+                modrm = op.modrm;
+                if ((modrm & 7) != 0) {
+                    throw new IllegalStateException("PUSH.rm [8F] is not zero!");
+                }
+                write_rm16(modrm, pop16());
+                return;
+            case 0x90: // NOP
+                return;
+            case 0x91:
+            case 0x92:
+            case 0x93:
+            case 0x94:
+            case 0x95:
+            case 0x96:
+            case 0x97: // XCHG
+                op1 = opcode & 7;
+                registers[AX] ^= registers[op1];
+                registers[op1] ^= registers[AX];
+                registers[AX] ^= registers[op1];
+                return;
+            case 0x98: // CBW
+                // https://www.felixcloutier.com/x86/CBW:CWDE:CDQE.html
+                registers[AX] = ((byte) registers[AX]) & 0xFFFF;
+                return;
+            case 0x99: // CWD
+                // http://www.c-jump.com/CIS77/MLabs/M11arithmetic/M11_0110_cbw_cwd_cdq.htm
+                registers[DX] = (registers[AX] & 0x8000) == 0 ? 0xFFFF : 0;
+                return;
+            case 0x9A: {
+                // CALLF
+                int temp = cs;
+                int temp1 = eip;
+                push16(temp1);
+
+                int temp3 = op.imm;
+                int temp4 = op.imm2;
+                eip = temp3;
+                cs = temp4;
+                return;
+            }
+            case 0x9B: // WAIT
+                return;
+            case 0x9C: // PUSHF
+                push16(get_eflags());
+                return;
+            case 0x9D:
+                set_eflags(pop16());
+                return;
+            case 0x9E: // SAHF
+                op1 = get_reg8(AH) & 0xD5; // Mask out flags we do not need
+                op2 = get_eflags() & ~0xFF; // Remove lower bits
+                set_eflags(op1 | op2);
+                return;
+            case 0x9F: // LAHF
+                op1 = get_reg8(AH) & 0x2A; // Select the bits we will keep
+                op2 = get_eflags() & 0xD5; // Only the bits we need
+                set_reg8(AH, op1 | op2);
+                return;
+            case 0xA0:
+                set_reg8(AL, rb(data_segment(), op.imm));
+                return;
+            case 0xA1:
+                set_reg16(AX, rw(data_segment(), op.imm));
+                return;
+            case 0xA2:
+                wb(data_segment(), op.imm, get_reg8(AL));
+                return;
+            case 0xA3:
+                ww(data_segment(), op.imm, get_reg16(AX));
+                return;
+            case 0xA4: // MOVSB
+                movs(1);
+                return;
+            case 0xA5: // MOVSW
+                movs(2);
+                return;
+            case 0xA6: // CMPSB
+                cmps(1);
+                return;
+            case 0xA7: // CMPSW
+                cmps(2);
+                return;
+            case 0xA8: // TEST
+                op1 = get_reg8(AL);
+                op2 = op.imm;
+                res = op1 & op2;
+                set_bit_flags(8, op1, op2, res);
+                return;
+            case 0xA9: // TEST
+                op1 = get_reg16(AX);
+                op2 = op.imm;
+                res = op1 & op2;
+                set_bit_flags(16, op1, op2, res);
+                return;
+            case 0xAA: // STOSB
+                stos(1);
+                return;
+            case 0xAB: // STOSW
+                stos(2);
+                return;
+            case 0xAC: // LODSB
+                lods(1);
+                return;
+            case 0xAD: // LODSW
+                lods(2);
+                return;
+            case 0xAE: // SCASB
+                scas(1);
+                return;
+            case 0xAF: // SCASW
+                scas(2);
+                return;
+            case 0xB0:
+            case 0xB1:
+            case 0xB2:
+            case 0xB3:
+            case 0xB4:
+            case 0xB5:
+            case 0xB6:
+            case 0xB7: // MOV
+                set_reg8(opcode & 7, op.imm);
+                return;
+            case 0xB8:
+            case 0xB9:
+            case 0xBA:
+            case 0xBB:
+            case 0xBC:
+            case 0xBD:
+            case 0xBE:
+            case 0xBF: // MOV
+                set_reg16(opcode & 7, op.imm);
+                return;
+            case 0xC0:
+            case 0xC2: // RET imm
+                op1 = op.imm;
+                eip = pop16();
+                registers[SP] = (registers[SP] + op1) & 0xFFFF;
+                return;
+            case 0xC1:
+            case 0xC3: // RET normal
+                eip = pop16();
+                return;
+            case 0xC4: // LES
+                modrm = op.modrm;
+                if (modrm >> 6 == 3) {
+                    throw new IllegalStateException("LES w/ mod=3");
+                }
+                op1 = read_far_pointer(modrm);
+                write_reg16(modrm, op1 & 0xFFFF);
+                es = op1 >>> 16;
+                return;
+            case 0xC5: // LDS
+                modrm = op.modrm;
+                if (modrm >> 6 == 3) {
+                    throw new IllegalStateException("LES w/ mod=3");
+                }
+                op1 = read_far_pointer(modrm);
+                write_reg16(modrm, op1 & 0xFFFF);
+                ds = op1 >>> 16;
+                return;
+            case 0xC6: // MOV
+                write_rm8(op.modrm, op.imm);
+                return;
+            case 0xC7: // MOV
+                write_rm16(op.modrm, op.imm);
+                return;
+            case 0xC8: {
+                int tmp = op.imm;
+                int tmp1 = op.imm2;
+                int tmp2 = tmp1 & 0x1F;
+                push16(registers[BP]);
+                int tmp3 = registers[SP];
+                if (tmp2 > 0) {
+                    for (int i = 1; i < tmp2; i++) {
+                        registers[BP] = (registers[BP] - 2) & 0xFFFF;
+                        push16(rw(ss, registers[BP]));
                     }
-                    return;
-                // I/O INSTRUCTIONS
-                case 0xE4:
-                    op1 = next_byte();
-                    set_reg8(AL, IO.read_port(op1));
-                    return;
-                case 0xE5:
-                    op1 = next_byte();
-                    registers[AX] = IO.read_port(op1);
-                    return;
-                case 0xE6:
-                    IO.write_port(next_byte(), get_reg8(AL));
-                    return;
-                case 0xE7:
-                    IO.write_port(next_byte(), registers[AX]);
-                    return;
-                case 0xE8:
-                    // CALL
-                    push16(eip);
-                    op1 = next_word();
-                    eip = (eip + op1) & 0xFFFF;
-                    return;
-                case 0xE9:
-                    // JMP
-                    op1 = next_word();
-                    eip = (eip + op1) & 0xFFFF;
-                    return;
-                case 0xEA: {
-                    // JMPF
-                    int tmp1 = next_word();
-                    int tmp2 = next_word();
-                    eip = tmp1;
-                    cs = tmp2;
-                    return;
+                    push16(tmp3);
+                }
+                registers[BP] = tmp3;
+                registers[SP] = (registers[SP] - tmp) & 0xFFFF;
+                return;
+            }
+            case 0xC9: // LEAVE
+                registers[SP] = registers[BP];
+                registers[BP] = pop16();
+                return;
+            case 0xCA: { // RETF
+                int tmp = op.imm;
+                eip = pop16();
+                cs = pop16();
+                registers[SP] = (registers[SP] + tmp + 2) & 0xFFFF;
+                return;
+            }
+            case 0xCB: { // RETF
+                eip = pop16();
+                cs = pop16();
+                return;
+            }
+            case 0xCC: { // INT3
+                interrupt(3);
+                return;
+            }
+            case 0xCD: { // INT
+                op1 = op.imm;
+                interrupt(op1);
+                return;
+            }
+            case 0xCE: { // INTO
+                op1 = op.imm;
+                if (get_of()) {
+                    interrupt(op1);
+                }
+                return;
+            }
+            case 0xCF: { // IRET
+                eip = pop16();
+                cs = pop16();
+                set_eflags(pop16());
+                return;
+            }
+            case 0xD0:
+            case 0xD1:
+            case 0xD2:
+            case 0xD3: {
+                modrm = op.modrm;
+                int shift_size = 8 << (opcode & 1);
+                rm = resolve_rm(modrm);
+                op1 = get_operand(shift_size, rm);
+                op2 = (opcode & 2) == 2 ? get_reg8(CL) : 1;
+                set_operand(shift_size, rm, run_shift(shift_size, modrm >> 3 & 7, op1, op2));
+                return;
+            }
+            case 0xD4: {
+                // https://www.felixcloutier.com/x86/AAM.html
+                int tempAL = get_reg8(AL);
+                int i8 = op.imm;
+                resolve_flags();
+                set_reg8(AH, tempAL / i8);
+                set_reg8(AL, tempAL % i8);
+                of = af = cf = false;
+                this.set_zf_pf_sf(get_reg8(AL), 8);
+                return;
+            }
+            case 0xD5: {
+                // https://www.felixcloutier.com/x86/AAD.html
+                int tempAL = get_reg8(AL);
+                int tempAH = get_reg8(AH);
+                int i8 = op.imm;
+                set_reg8(AH, 0);
+                set_reg8(AL, (tempAL + (tempAH * i8)) & 0xFF);
+                //this.set_zf_pf_sf(get_reg8(AL), 8);
+                this.set_add_flags(8, tempAL, (tempAH * i8), get_reg8(AL));
+                return;
+            }
+            case 0xD6: { // SALC
+                // http://www.rcollins.org/secrets/opcodes/SALC.html
+                set_reg8(AL, get_cf() ? 0xFF : 0);
+                return;
+            }
+            case 0xD7: {// XLAT
+                set_reg8(AL, rb(data_segment(), registers[BX] + get_reg8(AL)));
+                return;
+            }
+            case 0xD8:
+            case 0xD9:
+            case 0xDA:
+            case 0xDB:
+            case 0xDC:
+            case 0xDE:
+            case 0xDF:
+                if (fpu_enabled == 1) {
+                    fpu.op(opcode, op.modrm);
+                } else {
+                    System.err.println("Ignoring FPU operation!");
                 }
-                case 0xEB:
-                    // JMP
-                    op1 = next_byte();
+                return;
+            case 0xE0:
+                // LOOPNZ
+                op1 = op.imm;
+                registers[CX] = (registers[CX] - 1) & 0xFFFF;
+                if (registers[CX] != 0 && !get_zf()) {
                     eip = (eip + (byte) op1) & 0xFFFF;
+                }
+                return;
+            case 0xE1:
+                // LOOPZ
+                op1 = op.imm;
+                registers[CX] = (registers[CX] - 1) & 0xFFFF;
+                if (registers[CX] != 0 && get_zf()) {
+                    eip = (eip + (byte) op1) & 0xFFFF;
+                }
+                return;
+            case 0xE2:
+                // LOOPZ
+                op1 = op.imm;
+                registers[CX] = (registers[CX] - 1) & 0xFFFF;
+                if (registers[CX] != 0) {
+                    eip = (eip + (byte) op1) & 0xFFFF;
+                }
+                return;
+            case 0xE3:
+                // LOOPZ
+                op1 = op.imm;
+                if (registers[CX] == 0) {
+                    eip = (eip + (byte) op1) & 0xFFFF;
+                }
+                return;
+            // I/O INSTRUCTIONS
+            case 0xE4:
+                op1 = op.imm;
+                set_reg8(AL, io.read_port(op1));
+                return;
+            case 0xE5:
+                op1 = op.imm;
+                registers[AX] = io.read_port16(op1);
+                return;
+            case 0xE6:
+                io.write_port(op.imm, get_reg8(AL));
+                return;
+            case 0xE7:
+                io.write_port16(op.imm, registers[AX]);
+                return;
+            case 0xE8:
+                // CALL
+                push16(eip);
+                op1 = op.imm;
+                eip = (eip + op1) & 0xFFFF;
+                return;
+            case 0xE9:
+                // JMP
+                op1 = op.imm;
+                eip = (eip + op1) & 0xFFFF;
+                return;
+            case 0xEA: {
+                // JMPF
+                int tmp1 = op.imm;
+                int tmp2 = op.imm2;
+                eip = tmp1;
+                cs = tmp2;
+                return;
+            }
+            case 0xEB:
+                // JMP
+                op1 = op.imm;
+                eip = (eip + (byte) op1) & 0xFFFF;
+                return;
+            case 0xEC:
+                // IN
+                set_reg8(AL, io.read_port(registers[DX]));
+                return;
+            case 0xED:
+                // IN
+                set_reg16(AX, io.read_port16(registers[DX]));
+                return;
+            case 0xEE:
+                // OUT
+                io.write_port(registers[DX], get_reg8(AL));
+                return;
+            case 0xEF:
+                // OUT
+                io.write_port16(registers[DX], registers[AX]);
+                return;
+            case 0xF4: // HLT
+                if ((additional_eflags_bits & IF) != 0 && pic != null) {
+                    waiting = true;
                     return;
-                case 0xEC:
-                    // IN
-                    set_reg8(AL, IO.read_port(registers[DX]));
-                    return;
-                case 0xED:
-                    // IN
-                    set_reg16(AX, IO.read_port(registers[DX]));
-                    return;
-                case 0xEE:
-                    // OUT
-                    IO.write_port(registers[DX], get_reg8(AL));
-                    return;
-                case 0xEF:
-                    // OUT
-                    IO.write_port(registers[DX], registers[AX]);
-                    return;
-                case 0xF0:
-                case 0xF1: // ?
-                    // LOCK
-                    System.out.println("CPU: LOCK prefix");
-                    continue;
-                case 0xF2:
-                    rep = REPNZ;
-                    continue;
-                case 0xF3:
-                    rep = REPZ;
-                    continue;
-                case 0xF4:
-                    throw new HLTException();
-                case 0xF5: // CMC
-                    cf = !cf;
-                    return;
-                case 0xF6:
-                    modrm = next_byte();
-                    switch (modrm >> 3 & 7) {
-                        case 0:
-                        case 1: // TEST
-                            op1 = read_rm8(modrm);
-                            op2 = next_byte();
-                            res = op1 & op2;
-                            set_bit_flags(8, op1, op2, res);
-                            return;
-                        case 2: // NOT
-                            write_rm8(modrm, ~read_rm8(modrm));
-                            return;
-                        case 3:
-                            op1 = 0;
-                            op2 = read_rm8(modrm);
-                            res = op1 - op2;
-                            set_sub_flags(8, op1, op2, res);
-                            return;
-                        case 4: // MUL
-                            op1 = read_rm8(modrm);
-                            op2 = get_reg8(AL);
-                            res = op1 * op2;
-                            if ((op1 >> 8) != 0) {
-                                of = cf = true;
-                            } else {
-                                of = cf = false;
-                            }
-                            registers[AX] = res;
-                            return;
-                        case 5:  // IMUL
-                            op1 = (byte) read_rm8(modrm);
-                            op2 = (byte) get_reg8(AL);
-                            res = (short) (op1 * op2);
-                            if ((op1 >> 8) != 0) {
-                                of = cf = true;
-                            } else {
-                                of = cf = false;
-                            }
-                            registers[AX] = res & 0xFFFF;
-                            return;
-                        case 6:
-                            op1 = read_rm8(modrm);
-                            op2 = get_reg8(AL);
-                            res = (op2 / op1);
-                            int res2 = (op2 % op1);
-                            set_reg8(AL, res);
-                            set_reg8(AH, res2);
-                            return;
-                        case 7:
-                            op1 = (byte) read_rm8(modrm);
-                            op2 = (byte) get_reg8(AL);
-                            res = (short) (op2 / op1);
-                            int res3 = (short) (op2 % op1);
-                            set_reg8(AL, res);
-                            set_reg8(AH, res3);
-                            return;
-                    }
-                    return;
-                case 0xF7:
-                    modrm = next_byte();
-                    switch (modrm >> 3 & 7) {
-                        case 0:
-                        case 1: // TEST
-                            op1 = read_rm16(modrm);
-                            op2 = next_word();
-                            res = op1 & op2;
-                            set_bit_flags(16, op1, op2, res);
-                            return;
-                        case 2: // NOT
-                            write_rm16(modrm, ~read_rm16(modrm));
-                            return;
-                        case 3:
-                            op1 = 0;
-                            op2 = read_rm16(modrm);
-                            res = op1 - op2;
-                            set_sub_flags(16, op1, op2, res);
-                            return;
-                        case 4: // MUL
-                            op1 = read_rm16(modrm);
-                            op2 = get_reg16(AX);
-                            res = op1 * op2;
-                            if ((op1 >> 16) != 0) {
-                                of = cf = true;
-                            } else {
-                                of = cf = false;
-                            }
-                            registers[AX] = res & 0xFFFF;
-                            registers[DX] = res >> 16;
-                            return;
-                        case 5:  // IMUL
-                            op1 = (short) read_rm16(modrm);
-                            op2 = (short) get_reg16(AL);
-                            res = (op1 * op2);
-                            if ((op1 >> 16) != 0) {
-                                of = cf = true;
-                            } else {
-                                of = cf = false;
-                            }
-                            registers[AX] = res & 0xFFFF;
-                            registers[DX] = res >> 16;
-                            return;
-                        case 6:
-                            op1 = read_rm16(modrm);
-                            op2 = get_reg16(AL);
-                            res = (op2 / op1);
-                            int res2 = (op2 % op1);
-                            set_reg16(AX, res);
-                            set_reg16(DX, res2);
-                            return;
-                        case 7:
-                            op1 = (short) read_rm8(modrm);
-                            op2 = (short) get_reg8(AL);
-                            res = (op2 / op1);
-                            int res3 = (op2 % op1);
-                            set_reg16(AX, res);
-                            set_reg16(DX, res3);
-                            return;
-                    }
-                    return;
-                case 0xF8: // CLC
-                    cf = false;
-                    return;
-                case 0xF9: // STC
-                    cf = true;
-                    return;
-                case 0xFA: // CLI
-                    this.additional_eflags_bits &= 0xFDFF;
-                    return;
-                case 0xFB: // STI
-                    this.additional_eflags_bits |= 0x200;
-                    return;
-                case 0xFC: // CLD
-                    this.additional_eflags_bits &= 0xFBFF;
-                    return;
-                case 0xFD: // STD
-                    this.additional_eflags_bits |= 0x400;
-                    return;
-                case 0xFE:
-                    modrm = next_byte();
-                    switch (modrm >> 3 & 7) {
-                        case 0:
-                        case 2:
-                        case 4:
-                        case 6: {
-                            boolean saved_cf = cf;
-                            op1 = read_rm8(modrm);
-                            op2 = 1;
-                            res = (op1 + op2);
-                            set_add_flags(8, op1, op2, res);
-                            cf = saved_cf;
-                            return;
+                }
+                throw new HLTException();
+            case 0xF5: // CMC
+                resolve_flags();
+                cf = !cf;
+                return;
+            case 0xF6:
+                modrm = op.modrm;
+                switch (modrm >> 3 & 7) {
+                    case 0:
+                    case 1: // TEST
+                        op1 = read_rm8(modrm);
+                        op2 = op.imm;
+                        res = op1 & op2;
+                        set_bit_flags(8, op1, op2, res);
+                        return;
+                    case 2: // NOT
+                        rm = resolve_rm(modrm);
+                        set_operand8(rm, ~get_operand8(rm));
+                        return;
+                    case 3: // NEG
+                        rm = resolve_rm(modrm);
+                        op1 = 0;
+                        op2 = get_operand8(rm);
+                        res = op1 - op2;
+                        set_sub_flags(8, op1, op2, res);
+                        set_operand8(rm, res);
+                        return;
+                    case 4: // MUL
+                        op1 = read_rm8(modrm);
+                        op2 = get_reg8(AL);
+                        res = op1 * op2;
+                        resolve_flags();
+                        if ((op1 >> 8) != 0) {
+                            of = cf = true;
+                        } else {
+                            of = cf = false;
                         }
-                        case 1:
-                        case 3:
-                        case 5:
-                        case 7: {
-                            boolean saved_cf = cf;
-                            op1 = read_rm8(modrm);
-                            op2 = 1;
-                            res = (op1 - op2);
-                            set_sub_flags(8, op1, op2, res);
-                            cf = saved_cf;
-                            return;
+                        registers[AX] = res;
+                        return;
+                    case 5:  // IMUL
+                        op1 = (byte) read_rm8(modrm);
+                        op2 = (byte) get_reg8(AL);
+                        res = (short) (op1 * op2);
+                        resolve_flags();
+                        if ((op1 >> 8) != 0) {
+                            of = cf = true;
+                        } else {
+                            of = cf = false;
                         }
-                    }
-                    return;
-                case 0xFF:
-                    modrm = next_byte();
-                    switch (modrm >> 3 & 7) {
-                        case 0: {
-                            boolean saved_cf = cf;
-                            op1 = read_rm16(modrm);
-                            op2 = 1;
-                            res = (op1 + op2);
-                            set_add_flags(16, op1, op2, res);
-                            cf = saved_cf;
-                            return;
+                        registers[AX] = res & 0xFFFF;
+                        return;
+                    case 6:
+                        op1 = read_rm8(modrm);
+                        op2 = get_reg8(AL);
+                        res = (op2 / op1);
+                        int res2 = (op2 % op1);
+                        set_reg8(AL, res);
+                        set_reg8(AH, res2);
+                        return;
+                    case 7:
+                        op1 = (byte) read_rm8(modrm);
+                        op2 = (byte) get_reg8(AL);
+                        res = (short) (op2 / op1);
+                        int res3 = (short) (op2 % op1);
+                        set_reg8(AL, res);
+                        set_reg8(AH, res3);
+                        return;
+                }
+                return;
+            case 0xF7:
+                modrm = op.modrm;
+                switch (modrm >> 3 & 7) {
+                    case 0:
+                    case 1: // TEST
+                        op1 = read_rm16(modrm);
+                        op2 = op.imm;
+                        res = op1 & op2;
+                        set_bit_flags(16, op1, op2, res);
+                        return;
+                    case 2: // NOT
+                        rm = resolve_rm(modrm);
+                        set_operand16(rm, ~get_operand16(rm));
+                        return;
+                    case 3: // NEG
+                        rm = resolve_rm(modrm);
+                        op1 = 0;
+                        op2 = get_operand16(rm);
+                        res = op1 - op2;
+                        set_sub_flags(16, op1, op2, res);
+                        set_operand16(rm, res);
+                        return;
+                    case 4: // MUL
+                        op1 = read_rm16(modrm);
+                        op2 = get_reg16(AX);
+                        res = op1 * op2;
+                        resolve_flags();
+                        if ((op1 >> 16) != 0) {
+                            of = cf = true;
+                        } else {
+                            of = cf = false;
                         }
-                        case 2:
-                            op1 = read_rm16(modrm);
-                            push16(eip);
-                            eip = op1;
-                            return;
-                        case 4:
-                            op1 = read_rm16(modrm);
-                            eip = op1;
-                            return;
-                        case 5: // JMPF
-                        {
-                            if (modrm >> 6 == 3) {
-                                throw new IllegalStateException("JMPF FF with MOD=3??");
-                            }
-                            int rm = this.decode_modrm(modrm);
-                            eip = rw($cseg, rm + 0);
-                            cs = rw($cseg, rm + 2);
-                            return;
+                        registers[AX] = res & 0xFFFF;
+                        registers[DX] = res >> 16;
+                        return;
+                    case 5:  // IMUL
+                        op1 = (short) read_rm16(modrm);
+                        op2 = (short) get_reg16(AL);
+                        res = (op1 * op2);
+                        resolve_flags();
+                        if ((op1 >> 16) != 0) {
+                            of = cf = true;
+                        } else {
+                            of = cf = false;
                         }
-                        case 3: {// CALLF
-                            push16(cs);
-                            push16(eip);
-                            if (modrm >> 6 == 3) {
-                                throw new IllegalStateException("JMPF FF with MOD=3??");
-                            }
-                            int rm = this.decode_modrm(modrm);
-                            eip = rw($cseg, rm + 0);
-                            cs = rw($cseg, rm + 2);
-                            return;
+                        registers[AX] = res & 0xFFFF;
+                        registers[DX] = res >> 16;
+                        return;
+                    case 6:
+                        op1 = read_rm16(modrm);
+                        op2 = get_reg16(AL);
+                        res = (op2 / op1);
+                        int res2 = (op2 % op1);
+                        set_reg16(AX, res);
+                        set_reg16(DX, res2);
+                        return;
+                    case 7:
+                        op1 = (short) read_rm8(modrm);
+                        op2 = (short) get_reg8(AL);
+                        res = (op2 / op1);
+                        int res3 = (op2 % op1);
+                        set_reg16(AX, res);
+                        set_reg16(DX, res3);
+                        return;
+                }
+                return;
+            case 0xF8: // CLC
+                resolve_flags();
+                cf = false;
+                return;
+            case 0xF9: // STC
+                resolve_flags();
+                cf = true;
+                return;
+            case 0xFA: // CLI
+                this.additional_eflags_bits &= 0xFDFF;
+                return;
+            case 0xFB: // STI
+                if ((this.additional_eflags_bits & IF) == 0) {
+                    interrupt_shadow = instructions;
+                }
+                this.additional_eflags_bits |= 0x200;
+                return;
+            case 0xFC: // CLD
+                this.additional_eflags_bits &= 0xFBFF;
+                return;
+            case 0xFD: // STD
+                this.additional_eflags_bits |= 0x400;
+                return;
+            case 0xFE:
+                modrm = op.modrm;
+                switch (modrm >> 3 & 7) {
+                    case 0:
+                    case 2:
+                    case 4:
+                    case 6: {
+                        rm = resolve_rm(modrm);
+                        op1 = get_operand8(rm);
+                        op2 = 1;
+                        res = (op1 + op2);
+                        set_inc_flags(8, op1, op2, res);
+                        set_operand8(rm, res);
+                        return;
+                    }
+                    case 1:
+                    case 3:
+                    case 5:
+                    case 7: {
+                        rm = resolve_rm(modrm);
+                        op1 = get_operand8(rm);
+                        op2 = 1;
+                        res = (op1 - op2);
+                        set_dec_flags(8, op1, op2, res);
+                        set_operand8(rm, res);
+                        return;
+                    }
+                }
+                return;
+            case 0xFF:
+                modrm = op.modrm;
+                switch (modrm >> 3 & 7) {
+                    case 0: {
+                        rm = resolve_rm(modrm);
+                        op1 = get_operand16(rm);
+                        op2 = 1;
+                        res = (op1 + op2);
+                        set_inc_flags(16, op1, op2, res);
+                        set_operand16(rm, res);
+                        return;
+                    }
+                    case 2:
+                        op1 = read_rm16(modrm);
+                        push16(eip);
+                        eip = op1;
+                        return;
+                    case 4:
+                        op1 = read_rm16(modrm);
+                        eip = op1;
+                        return;
+                    case 5: // JMPF
+                    {
+                        if (modrm >> 6 == 3) {
+                            throw new IllegalStateException("JMPF FF with MOD=3??");
                         }
-                        case 6: // PUSH
-                            if (modrm == 0xF4) {
-                                if (architecture == 8086) {
-                                    registers[SP] = (registers[SP] - 2) & 0xFFFF;
-                                    ww(ss, registers[SP], registers[SP]); // Pushes post sp-modified ESP
-                                } else {
-                                    push16(registers[SP]);
-                                }
+                        int ptr = read_far_pointer(modrm);
+                        eip = ptr & 0xFFFF;
+                        cs = ptr >>> 16;
+                        return;
+                    }
+                    case 3: {// CALLF
+                        push16(cs);
+                        push16(eip);
+                        if (modrm >> 6 == 3) {
+                            throw new IllegalStateException("JMPF FF with MOD=3??");
+                        }
+                        int ptr = read_far_pointer(modrm);
+                        eip = ptr & 0xFFFF;
+                        cs = ptr >>> 16;
+                        return;
+                    }
+                    case 6: // PUSH
+                        if (modrm == 0xF4) {
+                            if (architecture == 8086) {
+                                registers[SP] = (registers[SP] - 2) & 0xFFFF;
+                                ww(ss, registers[SP], registers[SP]); // Pushes post sp-modified ESP
                             } else {
-                                push16(read_rm16(modrm));
+                                push16(registers[SP]);
                             }
-                            return;
-                        case 1: {
-                            boolean saved_cf = cf;
-                            op1 = read_rm16(modrm);
-                            op2 = 1;
-                            res = (op1 - op2);
-                            set_sub_flags(16, op1, op2, res);
-                            cf = saved_cf;
-                            return;
+                        } else {
+                            push16(read_rm16(modrm));
                         }
-                        case 7:
-                            throw new IllegalStateException("UNKNOWN FF OP!");
+                        return;
+                    case 1: {
+                        rm = resolve_rm(modrm);
+                        op1 = get_operand16(rm);
+                        op2 = 1;
+                        res = (op1 - op2);
+                        set_dec_flags(16, op1, op2, res);
+                        set_operand16(rm, res);
+                        return;
                     }
-                    return;
-                default:
-                    throw new UnsupportedOperationException(String.format("Opcode %02x not found!", opcode));
-            }
+                    case 7:
+                        throw new IllegalStateException("UNKNOWN FF OP!");
+                }
+                return;
+            default:
+                throw new UnsupportedOperationException(String.format("Opcode %02x not found!", opcode));
         }
     }
 }
@@ -0,0 +1,33 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.cpu;
+
+/**
+ * A run of instructions that has been translated into JVM bytecode by
+ * BlockCompiler. The generated (hidden) class extends this one.
+ *
+ * @author jkim13
+ */
+abstract class CompiledBlock {
+
+    /**
+     * The last instruction that is covered by this block. The interpreter
+     * continues with last.next.
+     */
+    DecodedOp last;
+
+    /**
+     * Number of instructions in the block
+     */
+    int count;
+
+    /**
+     * Clock cycles for all the instructions in the block
+     */
+    long cycles;
+
+    abstract void run(CPU cpu);
+}
@@ -0,0 +1,382 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.cpu;
+
+/**
+ * Clock counts for each instruction, from the Intel 8086 and 80186 manuals.
+ *
+ * The cost of an instruction is worked out once, when it is decoded (see
+ * cost()), so the CPU only has to add op.cycles. Things that depend on the
+ * data (a taken branch, REP iterations) are added separately. Where the manual
+ * gives a range (MUL, DIV) we use the middle of it, and we don't model the
+ * prefetch queue or the extra 4 clocks for word accesses at odd addresses.
+ *
+ * @author jkim13
+ */
+final class CycleTable {
+
+    /**
+     * Cost with a register operand, or for instructions without a ModR/M byte
+     */
+    private final int[] reg = new int[256];
+    /**
+     * Cost with a memory operand, not counting the effective address
+     */
+    private final int[] mem = new int[256];
+    /**
+     * Same as reg/mem, but for opcodes whose ModR/M reg field picks the
+     * instruction (80-83, F6, F7, FE, FF). Indexed by opcode * 8 +
+     * reg. 0 means use reg[]/mem[].
+     */
+    private final int[] group_reg = new int[256 * 8];
+    private final int[] group_mem = new int[256 * 8];
+    /**
+     * Effective address cost for each ModR/M byte (mod and r/m bits only)
+     */
+    private final int[] ea = new int[256];
+    /**
+     * Cost of each REP iteration of a string instruction, or 0
+     */
+    private final int[] rep = new int[256];
+    /**
+     * Extra cost when a conditional jump or loop is taken
+     */
+    private final int[] taken = new int[256];
+
+    /**
+     * Cost of a REP string instruction before the first iteration
+     */
+    private int rep_start;
+    /**
+     * Extra cost of a segment override prefix
+     */
+    private int segment_override;
+    /**
+     * Cost of taking a hardware interrupt
+     */
+    int interrupt;
+
+    static final CycleTable I8086 = make_8086();
+    static final CycleTable I80186 = make_80186();
+
+    static CycleTable get(int architecture) {
+        return architecture == 80186 ? I80186 : I8086;
+    }
+
+    /**
+     * Fill in op.cycles, op.rep_cycles and op.taken_cycles.
+     *
+     * @param op
+     * @param has_modrm
+     */
+    void cost(DecodedOp op, boolean has_modrm) {
+        int opcode = op.opcode;
+        boolean memory = has_modrm && op.modrm < 0xC0;
+        int index = opcode << 3 | (op.modrm >> 3 & 7);
+        int cycles = memory ? group_mem[index] : group_reg[index];
+        if (cycles == 0) {
+            cycles = memory ? mem[opcode] : reg[opcode];
+        }
+        if (memory) {
+            cycles += ea[op.modrm & 0xC7];
+        }
+        if (op.rep != 0 && rep[opcode] != 0) {
+            cycles = rep_start;
+            op.rep_cycles = rep[opcode];
+        }
+        if (op.sreg != -1) {
+            cycles += segment_override;
+        }
+        op.cycles = cycles;
+        op.taken_cycles = taken[opcode];
+    }
+
+    private void set(int first, int last, int reg_cycles, int mem_cycles) {
+        for (int i = first; i <= last; i++) {
+            reg[i] = reg_cycles;
+            mem[i] = mem_cycles;
+        }
+    }
+
+    private void set(int opcode, int reg_cycles) {
+        set(opcode, opcode, reg_cycles, reg_cycles);
+    }
+
+    private void set_group(int opcode, int modrm_reg, int reg_cycles, int mem_cycles) {
+        group_reg[opcode << 3 | modrm_reg] = reg_cycles;
+        group_mem[opcode << 3 | modrm_reg] = mem_cycles;
+    }
+
+    /**
+     * Things that cost the same on both
+     */
+    private void set_common() {
+        set(0x00, 0xFF, 2, 8);
+        for (int alu = 0; alu < 0x40; alu += 8) {
+            set(alu + 4, alu + 5, 4, 4); // AL/AX, imm
+        }
+        set(0x40, 0x4F, 3, 3); // INC/DEC r16
+        set(0x90, 0x97, 3, 3); // XCHG AX, r16
+        set(0x98, 2); // CBW
+        set(0x9E, 0x9F, 4, 4); // SAHF, LAHF
+        set(0xA8, 0xA9, 4, 4); // TEST AL/AX, imm
+        set(0xB0, 0xBF, 4, 4); // MOV r, imm
+        set(0xD6, 3); // SALC
+        set(0xF4, 2); // HLT
+        set(0xF5, 2); // CMC
+        set(0xF8, 0xFD, 2, 2); // CLC ... STD
+        set(0xD8, 0xDF, 2, 8); // ESC
+    }
+
+    private static CycleTable make_8086() {
+        CycleTable t = new CycleTable();
+        t.set_common();
+        for (int alu = 0; alu < 0x40; alu += 8) {
+            t.set(alu, alu + 1, 3, 16); // r/m, r
+            t.set(alu + 2, alu + 3, 3, 9); // r, r/m
+        }
+        t.set(0x38, 0x39, 3, 9); // CMP r/m, r doesn't write back
+        t.set(0x06, 10); // PUSH ES
+        t.set(0x0E, 10);
+        t.set(0x16, 10);
+        t.set(0x1E, 10);
+        t.set(0x07, 8); // POP ES
+        t.set(0x0F, 8);
+        t.set(0x17, 8);
+        t.set(0x1F, 8);
+        t.set(0x27, 4); // DAA
+        t.set(0x2F, 4);
+        t.set(0x37, 8); // AAA
+        t.set(0x3F, 8);
+        t.set(0x40, 0x4F, 2, 2); // INC/DEC r16
+        t.set(0x50, 0x57, 11, 11); // PUSH r16
+        t.set(0x58, 0x5F, 8, 8); // POP r16
+        t.set(0x60, 0x7F, 4, 4); // Jcc (60-6F are aliases on the 8086)
+        for (int i = 0x60; i <= 0x7F; i++) {
+            t.taken[i] = 12;
+        }
+        t.set(0x80, 0x83, 4, 17);
+        for (int op = 0x80; op <= 0x83; op++) {
+            t.set_group(op, 7, 4, 10); // CMP r/m, imm
+        }
+        t.set(0x84, 0x85, 3, 9); // TEST r/m, r
+        t.set(0x86, 0x87, 4, 17); // XCHG r/m, r
+        t.set(0x88, 0x89, 2, 9); // MOV r/m, r
+        t.set(0x8A, 0x8B, 2, 8); // MOV r, r/m
+        t.set(0x8C, 0x8C, 2, 9); // MOV r/m, sreg
+        t.set(0x8D, 0x8D, 2, 2); // LEA
+        t.set(0x8E, 0x8E, 2, 8); // MOV sreg, r/m
+        t.set(0x8F, 0x8F, 8, 17); // POP r/m
+        t.set(0x99, 5); // CWD
+        t.set(0x9A, 28); // CALL far
+        t.set(0x9B, 4); // WAIT
+        t.set(0x9C, 10); // PUSHF
+        t.set(0x9D, 8); // POPF
+        t.set(0xA0, 0xA3, 10, 10); // MOV AL/AX, moffs
+        t.set(0xA4, 0xA5, 18, 18); // MOVS
+        t.set(0xA6, 0xA7, 22, 22); // CMPS
+        t.set(0xAA, 0xAB, 11, 11); // STOS
+        t.set(0xAC, 0xAD, 12, 12); // LODS
+        t.set(0xAE, 0xAF, 15, 15); // SCAS
+        t.rep[0xA4] = t.rep[0xA5] = 17;
+        t.rep[0xA6] = t.rep[0xA7] = 22;
+        t.rep[0xAA] = t.rep[0xAB] = 10;
+        t.rep[0xAC] = t.rep[0xAD] = 13;
+        t.rep[0xAE] = t.rep[0xAF] = 15;
+        t.rep_start = 9;
+        t.set(0xC0, 20); // C0 and C1 are aliases of RET imm and RET
+        t.set(0xC1, 16);
+        t.set(0xC2, 20); // RET imm
+        t.set(0xC3, 16); // RET
+        t.set(0xC4, 0xC5, 16, 16); // LES, LDS
+        t.set(0xC6, 0xC7, 4, 10); // MOV r/m, imm
+        t.set(0xC8, 15); // ENTER, LEAVE. Also not real 8086 opcodes.
+        t.set(0xC9, 8);
+        t.set(0xCA, 25); // RETF imm
+        t.set(0xCB, 26); // RETF
+        t.set(0xCC, 52); // INT 3
+        t.set(0xCD, 51); // INT
+        t.set(0xCE, 4); // INTO, not taken
+        t.set(0xCF, 24); // IRET
+        t.set(0xD0, 0xD1, 2, 15); // Shift by 1
+        t.set(0xD2, 0xD3, 8, 20); // Shift by CL
+        t.set(0xD4, 83); // AAM
+        t.set(0xD5, 60); // AAD
+        t.set(0xD7, 11); // XLAT
+        t.set(0xE0, 5); // LOOPNZ
+        t.set(0xE1, 6); // LOOPZ
+        t.set(0xE2, 5); // LOOP
+        t.set(0xE3, 6); // JCXZ
+        t.taken[0xE0] = 14;
+        t.taken[0xE1] = 12;
+        t.taken[0xE2] = 12;
+        t.taken[0xE3] = 12;
+        t.set(0xE4, 0xE7, 10, 10); // IN/OUT imm
+        t.set(0xEC, 0xEF, 8, 8); // IN/OUT DX
+        t.set(0xE8, 19); // CALL near
+        t.set(0xE9, 0xEB, 15, 15); // JMP near, far, short
+        t.set_group(0xF6, 0, 5, 11); // TEST r/m8, imm
+        t.set_group(0xF6, 1, 5, 11);
+        t.set_group(0xF6, 2, 3, 16); // NOT
+        t.set_group(0xF6, 3, 3, 16); // NEG
+        t.set_group(0xF6, 4, 74, 80); // MUL
+        t.set_group(0xF6, 5, 89, 95); // IMUL
+        t.set_group(0xF6, 6, 85, 91); // DIV
+        t.set_group(0xF6, 7, 106, 112); // IDIV
+        t.set_group(0xF7, 0, 5, 11);
+        t.set_group(0xF7, 1, 5, 11);
+        t.set_group(0xF7, 2, 3, 16);
+        t.set_group(0xF7, 3, 3, 16);
+        t.set_group(0xF7, 4, 125, 131);
+        t.set_group(0xF7, 5, 141, 147);
+        t.set_group(0xF7, 6, 153, 159);
+        t.set_group(0xF7, 7, 174, 180);
+        for (int op = 0xFE; op <= 0xFF; op++) {
+            t.set_group(op, 0, 3, 15); // INC r/m
+            t.set_group(op, 1, 3, 15); // DEC r/m
+        }
+        t.set_group(0xFF, 2, 16, 21); // CALL r/m
+        t.set_group(0xFF, 3, 37, 37); // CALL far m
+        t.set_group(0xFF, 4, 11, 18); // JMP r/m
+        t.set_group(0xFF, 5, 24, 24); // JMP far m
+        t.set_group(0xFF, 6, 11, 16); // PUSH r/m
+        t.set_group(0xFF, 7, 11, 16);
+
+        // EA calculation: disp only 6, base or index 5, disp + base or
+        // index 9, base + index 7 or 8, all three 11 or 12. BP+DI and BX+SI
+        // are the quick pairs.
+        int[] base_index = {7, 8, 8, 7, 5, 5, 5, 5};
+        for (int rm = 0; rm < 8; rm++) {
+            t.ea[rm] = base_index[rm];
+            t.ea[0x40 | rm] = base_index[rm] + 4;
+            t.ea[0x80 | rm] = base_index[rm] + 4;
+        }
+        t.ea[6] = 6;
+        t.segment_override = 2;
+        t.interrupt = 61;
+        return t;
+    }
+
+    private static CycleTable make_80186() {
+        CycleTable t = new CycleTable();
+        t.set_common();
+        // The 80186 has its own address adder, so the EA cost is folded into
+        // the memory forms and ea[] stays 0.
+        for (int alu = 0; alu < 0x40; alu += 8) {
+            t.set(alu, alu + 1, 3, 10); // r/m, r
+            t.set(alu + 2, alu + 3, 3, 10); // r, r/m
+        }
+        t.set(0x06, 9);
+        t.set(0x0E, 9);
+        t.set(0x16, 9);
+        t.set(0x1E, 9);
+        t.set(0x07, 8);
+        t.set(0x0F, 8);
+        t.set(0x17, 8);
+        t.set(0x1F, 8);
+        t.set(0x27, 4);
+        t.set(0x2F, 4);
+        t.set(0x37, 8);
+        t.set(0x3F, 7);
+        t.set(0x50, 0x57, 10, 10); // PUSH r16
+        t.set(0x58, 0x5F, 10, 10); // POP r16
+        // The CPU runs 60-6F and C0-C1 the way the 8086 does, as aliases of
+        // Jcc and RET, so they are costed that way here too.
+        t.set(0x60, 0x7F, 4, 4); // Jcc
+        for (int i = 0x60; i <= 0x7F; i++) {
+            t.taken[i] = 9;
+        }
+        t.set(0x80, 0x83, 4, 16);
+        for (int op = 0x80; op <= 0x83; op++) {
+            t.set_group(op, 7, 3, 10);
+        }
+        t.set(0x84, 0x85, 3, 10);
+        t.set(0x86, 0x87, 4, 17);
+        t.set(0x88, 0x89, 2, 12);
+        t.set(0x8A, 0x8B, 2, 9);
+        t.set(0x8C, 0x8C, 2, 11);
+        t.set(0x8D, 0x8D, 6, 6);
+        t.set(0x8E, 0x8E, 2, 9);
+        t.set(0x8F, 0x8F, 10, 20);
+        t.set(0x99, 4);
+        t.set(0x9A, 23);
+        t.set(0x9B, 6);
+        t.set(0x9C, 9);
+        t.set(0x9D, 8);
+        t.set(0xA0, 0xA1, 8, 8);
+        t.set(0xA2, 0xA3, 9, 9);
+        t.set(0xA4, 0xA5, 14, 14);
+        t.set(0xA6, 0xA7, 22, 22);
+        t.set(0xAA, 0xAB, 10, 10);
+        t.set(0xAC, 0xAD, 12, 12);
+        t.set(0xAE, 0xAF, 15, 15);
+        t.rep[0xA4] = t.rep[0xA5] = 8;
+        t.rep[0xA6] = t.rep[0xA7] = 22;
+        t.rep[0xAA] = t.rep[0xAB] = 9;
+        t.rep[0xAC] = t.rep[0xAD] = 11;
+        t.rep[0xAE] = t.rep[0xAF] = 15;
+        t.rep_start = 6;
+        t.set(0xC0, 18);
+        t.set(0xC1, 16);
+        t.set(0xC2, 18);
+        t.set(0xC3, 16);
+        t.set(0xC4, 0xC5, 18, 18);
+        t.set(0xC6, 0xC7, 4, 12);
+        t.set(0xC8, 15); // ENTER
+        t.set(0xC9, 8); // LEAVE
+        t.set(0xCA, 25);
+        t.set(0xCB, 22);
+        t.set(0xCC, 45);
+        t.set(0xCD, 47);
+        t.set(0xCE, 4);
+        t.set(0xCF, 28);
+        t.set(0xD0, 0xD1, 2, 15);
+        t.set(0xD2, 0xD3, 5, 17);
+        t.set(0xD4, 19);
+        t.set(0xD5, 15);
+        t.set(0xD7, 11);
+        t.set(0xE0, 6);
+        t.set(0xE1, 6);
+        t.set(0xE2, 5);
+        t.set(0xE3, 5);
+        t.taken[0xE0] = 10;
+        t.taken[0xE1] = 10;
+        t.taken[0xE2] = 10;
+        t.taken[0xE3] = 11;
+        t.set(0xE4, 0xE7, 10, 10);
+        t.set(0xEC, 0xEF, 8, 8);
+        t.set(0xE8, 15);
+        t.set(0xE9, 0xEB, 14, 14);
+        t.set_group(0xF6, 0, 4, 10);
+        t.set_group(0xF6, 1, 4, 10);
+        t.set_group(0xF6, 2, 3, 10);
+        t.set_group(0xF6, 3, 3, 10);
+        t.set_group(0xF6, 4, 27, 33);
+        t.set_group(0xF6, 5, 26, 32);
+        t.set_group(0xF6, 6, 29, 35);
+        t.set_group(0xF6, 7, 48, 54);
+        t.set_group(0xF7, 0, 4, 10);
+        t.set_group(0xF7, 1, 4, 10);
+        t.set_group(0xF7, 2, 3, 10);
+        t.set_group(0xF7, 3, 3, 10);
+        t.set_group(0xF7, 4, 36, 42);
+        t.set_group(0xF7, 5, 35, 41);
+        t.set_group(0xF7, 6, 38, 44);
+        t.set_group(0xF7, 7, 57, 63);
+        for (int op = 0xFE; op <= 0xFF; op++) {
+            t.set_group(op, 0, 3, 15);
+            t.set_group(op, 1, 3, 15);
+        }
+        t.set_group(0xFF, 2, 13, 19);
+        t.set_group(0xFF, 3, 38, 38);
+        t.set_group(0xFF, 4, 11, 17);
+        t.set_group(0xFF, 5, 26, 26);
+        t.set_group(0xFF, 6, 10, 16);
+        t.set_group(0xFF, 7, 10, 16);
+        t.interrupt = 42;
+        return t;
+    }
+}
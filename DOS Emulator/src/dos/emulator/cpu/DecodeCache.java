@@ -0,0 +1,108 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.cpu;
+
+import java.util.Arrays;
+
+/**
+ * Holds decoded instructions, indexed by linear address. Every cached
+ * instruction is completely inside one 4 KB page. When a byte belonging to a
+ * cached instruction is written to, the whole page is thrown out.
+ *
+ * @author jkim13
+ */
+class DecodeCache {
+
+    private final static int PAGES = 256;
+
+    /**
+     * One array per page, created the first time we cache something there.
+     */
+    private final DecodedOp[][] pages = new DecodedOp[PAGES][];
+
+    /**
+     * One bit for every byte of memory that is part of a cached instruction.
+     */
+    private final long[] code_bits = new long[(PAGES << 12) >> 6];
+
+    /**
+     * True if a page has any cached instructions. This is checked on every
+     * memory write, so it has to be fast.
+     */
+    final boolean[] code_pages = new boolean[PAGES];
+
+    DecodedOp get(int linear) {
+        DecodedOp[] page = pages[linear >> 12];
+        if (page == null) {
+            return null;
+        }
+        return page[linear & 0xFFF];
+    }
+
+    void put(DecodedOp op) {
+        int page_number = op.linear >> 12;
+        if (pages[page_number] == null) {
+            pages[page_number] = new DecodedOp[4096];
+        }
+        pages[page_number][op.linear & 0xFFF] = op;
+        for (int i = 0; i < op.length; i++) {
+            int addr = op.linear + i;
+            code_bits[addr >> 6] |= 1L << addr;
+        }
+        code_pages[page_number] = true;
+    }
+
+    /**
+     * Called when something is written to a page that has cached
+     * instructions. Only throws out the page if the byte is actually code.
+     *
+     * @param addr
+     */
+    void write(int addr) {
+        if ((code_bits[addr >> 6] & (1L << addr)) != 0) {
+            invalidate_page(addr >> 12);
+        }
+    }
+
+    /**
+     * Same as calling write on every byte in [addr, addr + length).
+     *
+     * @param addr
+     * @param length
+     */
+    void write_range(int addr, int length) {
+        int end = addr + length;
+        while (addr < end) {
+            int page_number = addr >> 12;
+            int page_end = Math.min(end, (page_number + 1) << 12);
+            for (; addr < page_end && code_pages[page_number]; addr++) {
+                write(addr);
+            }
+            addr = page_end;
+        }
+    }
+
+    void invalidate_page(int page_number) {
+        DecodedOp[] page = pages[page_number];
+        if (page != null) {
+            // Someone might still have a pointer to these through "next"
+            for (DecodedOp op : page) {
+                if (op != null) {
+                    op.linear = -1;
+                }
+            }
+            pages[page_number] = null;
+        }
+        Arrays.fill(code_bits, page_number << 6, (page_number + 1) << 6, 0);
+        code_pages[page_number] = false;
+    }
+
+    void flush() {
+        for (int i = 0; i < PAGES; i++) {
+            invalidate_page(i);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.cpu;
+
+/**
+ * A decoded instruction. All the bytes that come after the opcode (ModR/M,
+ * displacement and immediates) are read once when the instruction is decoded,
+ * so that running it again does not have to fetch and decode it again.
+ *
+ * @author jkim13
+ */
+class DecodedOp {
+
+    /**
+     * Linear address of the first byte (including prefixes). Set to -1 when the
+     * instruction has been thrown out of the decode cache.
+     */
+    int linear;
+    /**
+     * Length of the instruction, including prefixes
+     */
+    int length;
+
+    /**
+     * Segment override (ES, CS, SS, DS) or -1 if there is none
+     */
+    int sreg = -1;
+    /**
+     * REP prefix (NO_REP_PREFIX, REPZ, REPNZ)
+     */
+    int rep;
+
+    int opcode;
+    int modrm;
+    /**
+     * ModR/M displacement, as it was read from memory
+     */
+    int disp;
+    /**
+     * Immediates. imm2 is only used by instructions that have two of them
+     * (CALLF, JMPF, ENTER).
+     */
+    int imm, imm2;
+
+    /**
+     * Clock cycles it takes, see CycleTable
+     */
+    int cycles;
+    /**
+     * Extra cycles for each REP iteration, or 0 if this isn't a REP string
+     * instruction
+     */
+    int rep_cycles;
+    /**
+     * Extra cycles if this is a conditional jump and it is taken
+     */
+    int taken_cycles;
+
+    /**
+     * True if this instruction can jump somewhere else (or change CS)
+     */
+    boolean ends_block;
+    /**
+     * The instruction right after this one in the same basic block, or null
+     */
+    DecodedOp next;
+
+    /**
+     * How many times we jumped here. Once this gets to CPU.JIT_THRESHOLD, we
+     * try to compile the instructions starting here.
+     */
+    int executions;
+    /**
+     * Compiled code starting at this instruction, or null
+     */
+    CompiledBlock compiled;
+}
@@ -0,0 +1,266 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.cpu;
+
+/**
+ * Turns instructions in memory back into assembly, for reports and debugging.
+ * It reads ram directly (no MemoryMap handlers are called), and it does not
+ * use the CPU's own decoder, so that it can be trusted when that is what is
+ * being checked. Opcodes the CPU runs as aliases (60-6F, C0, C1) are shown as
+ * what the CPU does with them.
+ *
+ * @author jkim13
+ */
+public class Disassembler {
+
+    /**
+     * Operands: E = ModR/M r/m, G = ModR/M reg, S = segment register from the
+     * reg field, M = memory only, I = immediate, Is = sign extended byte, J =
+     * relative jump, A = far address, O = direct address. b and w give the
+     * size. Anything else is printed as it is.
+     */
+    private static final String[] OPCODES = {
+        // 00
+        "add Eb,Gb", "add Ew,Gw", "add Gb,Eb", "add Gw,Ew", "add al,Ib", "add ax,Iw", "push es", "pop es",
+        "or Eb,Gb", "or Ew,Gw", "or Gb,Eb", "or Gw,Ew", "or al,Ib", "or ax,Iw", "push cs", "pop cs",
+        // 10
+        "adc Eb,Gb", "adc Ew,Gw", "adc Gb,Eb", "adc Gw,Ew", "adc al,Ib", "adc ax,Iw", "push ss", "pop ss",
+        "sbb Eb,Gb", "sbb Ew,Gw", "sbb Gb,Eb", "sbb Gw,Ew", "sbb al,Ib", "sbb ax,Iw", "push ds", "pop ds",
+        // 20
+        "and Eb,Gb", "and Ew,Gw", "and Gb,Eb", "and Gw,Ew", "and al,Ib", "and ax,Iw", null, "daa",
+        "sub Eb,Gb", "sub Ew,Gw", "sub Gb,Eb", "sub Gw,Ew", "sub al,Ib", "sub ax,Iw", null, "das",
+        // 30
+        "xor Eb,Gb", "xor Ew,Gw", "xor Gb,Eb", "xor Gw,Ew", "xor al,Ib", "xor ax,Iw", null, "aaa",
+        "cmp Eb,Gb", "cmp Ew,Gw", "cmp Gb,Eb", "cmp Gw,Ew", "cmp al,Ib", "cmp ax,Iw", null, "aas",
+        // 40
+        "inc ax", "inc cx", "inc dx", "inc bx", "inc sp", "inc bp", "inc si", "inc di",
+        "dec ax", "dec cx", "dec dx", "dec bx", "dec sp", "dec bp", "dec si", "dec di",
+        // 50
+        "push ax", "push cx", "push dx", "push bx", "push sp", "push bp", "push si", "push di",
+        "pop ax", "pop cx", "pop dx", "pop bx", "pop sp", "pop bp", "pop si", "pop di",
+        // 60
+        "jo Jb", "jno Jb", "jb Jb", "jnb Jb", "jz Jb", "jnz Jb", "jbe Jb", "ja Jb",
+        "js Jb", "jns Jb", "jp Jb", "jnp Jb", "jl Jb", "jge Jb", "jle Jb", "jg Jb",
+        // 70
+        "jo Jb", "jno Jb", "jb Jb", "jnb Jb", "jz Jb", "jnz Jb", "jbe Jb", "ja Jb",
+        "js Jb", "jns Jb", "jp Jb", "jnp Jb", "jl Jb", "jge Jb", "jle Jb", "jg Jb",
+        // 80
+        "1 Eb,Ib", "1 Ew,Iw", "1 Eb,Ib", "1 Ew,Is", "test Eb,Gb", "test Ew,Gw", "xchg Eb,Gb", "xchg Ew,Gw",
+        "mov Eb,Gb", "mov Ew,Gw", "mov Gb,Eb", "mov Gw,Ew", "mov Ew,Sw", "lea Gw,M", "mov Sw,Ew", "pop Ew",
+        // 90
+        "nop", "xchg ax,cx", "xchg ax,dx", "xchg ax,bx", "xchg ax,sp", "xchg ax,bp", "xchg ax,si", "xchg ax,di",
+        "cbw", "cwd", "call Ap", "wait", "pushf", "popf", "sahf", "lahf",
+        // A0
+        "mov al,Ob", "mov ax,Ow", "mov Ob,al", "mov Ow,ax", "movsb", "movsw", "cmpsb", "cmpsw",
+        "test al,Ib", "test ax,Iw", "stosb", "stosw", "lodsb", "lodsw", "scasb", "scasw",
+        // B0
+        "mov al,Ib", "mov cl,Ib", "mov dl,Ib", "mov bl,Ib", "mov ah,Ib", "mov ch,Ib", "mov dh,Ib", "mov bh,Ib",
+        "mov ax,Iw", "mov cx,Iw", "mov dx,Iw", "mov bx,Iw", "mov sp,Iw", "mov bp,Iw", "mov si,Iw", "mov di,Iw",
+        // C0
+        "ret Iw", "ret", "ret Iw", "ret", "les Gw,M", "lds Gw,M", "mov Eb,Ib", "mov Ew,Iw",
+        "enter Iw,Ib", "leave", "retf Iw", "retf", "int 3", "int Ib", "into", "iret",
+        // D0
+        "2 Eb,1", "2 Ew,1", "2 Eb,cl", "2 Ew,cl", "aam Ib", "aad Ib", "salc", "xlat",
+        "esc E", "esc E", "esc E", "esc E", "esc E", "esc E", "esc E", "esc E",
+        // E0
+        "loopnz Jb", "loopz Jb", "loop Jb", "jcxz Jb", "in al,Ib", "in ax,Ib", "out Ib,al", "out Ib,ax",
+        "call Jw", "jmp Jw", "jmp Ap", "jmp Jb", "in al,dx", "in ax,dx", "out dx,al", "out dx,ax",
+        // F0
+        null, "db f1", null, null, "hlt", "cmc", "3 Eb", "3 Ew",
+        "clc", "stc", "cli", "sti", "cld", "std", "4 Eb", "5 Ew"
+    };
+
+    /**
+     * Instructions picked by the reg field of the ModR/M byte. The group
+     * number takes the place of the name in OPCODES.
+     */
+    private static final String[][] GROUPS = {
+        null,
+        {"add", "or", "adc", "sbb", "and", "sub", "xor", "cmp"},
+        {"rol", "ror", "rcl", "rcr", "shl", "shr", "sal", "sar"},
+        {"test", "test", "not", "neg", "mul", "imul", "div", "idiv"},
+        {"inc", "dec", null, null, null, null, null, null},
+        {"inc", "dec", "call", "call far", "jmp", "jmp far", "push", null}
+    };
+
+    private static final String[] REG8 = {"al", "cl", "dl", "bl", "ah", "ch", "dh", "bh"};
+    private static final String[] REG16 = {"ax", "cx", "dx", "bx", "sp", "bp", "si", "di"};
+    private static final String[] SREG = {"es", "cs", "ss", "ds"};
+    private static final String[] EA = {"bx+si", "bx+di", "bp+si", "bp+di", "si", "di", "bp", "bx"};
+
+    private final byte[] ram;
+    private final int cs;
+    private int ip;
+    private String segment;
+    private int modrm = -1;
+
+    private Disassembler(byte[] ram, int cs, int ip) {
+        this.ram = ram;
+        this.cs = cs;
+        this.ip = ip;
+    }
+
+    private int next_byte() {
+        int b = ram[((cs << 4) + (ip & 0xFFFF)) & 0xFFFFF] & 0xFF;
+        ip = (ip + 1) & 0xFFFF;
+        return b;
+    }
+
+    private int next_word() {
+        int lo = next_byte();
+        return lo | next_byte() << 8;
+    }
+
+    private int modrm() {
+        if (modrm == -1) {
+            modrm = next_byte();
+        }
+        return modrm;
+    }
+
+    private String memory(boolean sized, int size) {
+        int m = modrm();
+        int mod = m >> 6, rm = m & 7;
+        String address;
+        if (mod == 0 && rm == 6) {
+            address = String.format("%04x", next_word());
+        } else if (mod == 1) {
+            int disp = (byte) next_byte();
+            address = String.format("%s%s%x", EA[rm], disp < 0 ? "-" : "+", Math.abs(disp));
+        } else if (mod == 2) {
+            address = String.format("%s+%04x", EA[rm], next_word());
+        } else {
+            address = EA[rm];
+        }
+        String prefix = sized ? (size == 8 ? "byte " : "word ") : "";
+        return prefix + (segment != null ? segment + ":" : "") + "[" + address + "]";
+    }
+
+    private String operand(String spec, boolean sized) {
+        char size = spec.length() > 1 ? spec.charAt(1) : 'w';
+        switch (spec.charAt(0)) {
+            case 'E':
+                if (modrm() >> 6 == 3) {
+                    return (size == 'b' ? REG8 : REG16)[modrm & 7];
+                }
+                return memory(sized, size == 'b' ? 8 : 16);
+            case 'G':
+                return (size == 'b' ? REG8 : REG16)[modrm() >> 3 & 7];
+            case 'S':
+                return SREG[modrm() >> 3 & 3];
+            case 'M':
+                return memory(false, 16);
+            case 'I':
+                if (spec.equals("Is")) {
+                    int imm = (byte) next_byte();
+                    return String.format("%s%x", imm < 0 ? "-" : "", Math.abs(imm));
+                }
+                return String.format(size == 'b' ? "%02x" : "%04x", size == 'b' ? next_byte() : next_word());
+            case 'J': {
+                int rel = size == 'b' ? (byte) next_byte() : (short) next_word();
+                return String.format("%04x", (ip + rel) & 0xFFFF);
+            }
+            case 'A': {
+                int offset = next_word();
+                return String.format("%04x:%04x", next_word(), offset);
+            }
+            case 'O':
+                return (size == 'b' ? "byte " : "word ") + (segment != null ? segment + ":" : "")
+                        + String.format("[%04x]", next_word());
+            default:
+                return spec;
+        }
+    }
+
+    private String instruction() {
+        String prefixes = "";
+        int opcode;
+        String format;
+        while (true) {
+            opcode = next_byte();
+            format = OPCODES[opcode];
+            if (format != null) {
+                break;
+            }
+            switch (opcode) {
+                case 0x26:
+                case 0x2E:
+                case 0x36:
+                case 0x3E:
+                    segment = SREG[opcode >> 3 & 3];
+                    break;
+                case 0xF0:
+                    prefixes += "lock ";
+                    break;
+                case 0xF2:
+                    prefixes += "repnz ";
+                    break;
+                case 0xF3:
+                    prefixes += "rep ";
+                    break;
+            }
+        }
+        int space = format.indexOf(' ');
+        String name = space == -1 ? format : format.substring(0, space);
+        String[] specs = space == -1 ? new String[0] : format.substring(space + 1).split(",");
+        if (Character.isDigit(name.charAt(0))) {
+            int reg = modrm() >> 3 & 7;
+            name = GROUPS[name.charAt(0) - '0'][reg];
+            if (name == null) {
+                return "db " + String.format("%02x %02x", opcode, modrm);
+            }
+            // F6/F7 TEST has an immediate, the rest of group 3 does not
+            if (opcode >= 0xF6 && opcode <= 0xF7 && reg < 2) {
+                specs = new String[]{specs[0], opcode == 0xF6 ? "Ib" : "Iw"};
+            }
+        }
+        // Memory operands only need a size when there is no register
+        // operand to give one
+        boolean sized = true;
+        for (String spec : specs) {
+            if (spec.startsWith("G") || spec.startsWith("S")) {
+                sized = false;
+            }
+        }
+        StringBuilder sb = new StringBuilder(prefixes).append(name);
+        for (int i = 0; i < specs.length; i++) {
+            sb.append(i == 0 ? " " : ", ").append(operand(specs[i], sized));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Disassemble count instructions, one per line, with their address and
+     * bytes.
+     *
+     * @param cpu
+     * @param cs
+     * @param ip
+     * @param count
+     * @return
+     */
+    public static String disassemble(CPU cpu, int cs, int ip, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            Disassembler d = new Disassembler(cpu.ram, cs, ip);
+            String text = d.instruction();
+            StringBuilder bytes = new StringBuilder();
+            for (int a = ip; a != d.ip; a = (a + 1) & 0xFFFF) {
+                bytes.append(String.format("%02x", cpu.ram[((cs << 4) + a) & 0xFFFFF] & 0xFF));
+            }
+            sb.append(String.format("%04x:%04x  %-14s %s%n", cs, ip, bytes, text));
+            ip = d.ip;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The instruction at cs:ip, without its address or bytes
+     */
+    public static String disassemble(CPU cpu, int cs, int ip) {
+        return new Disassembler(cpu.ram, cs, ip).instruction();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.cpu;
+
+/**
+ * Runs two CPUs side by side on the same image and stops at the first place
+ * where they don't agree. The reference is normally a plain interpreter (no
+ * JIT, eager flags) and the candidate has whatever is being checked turned
+ * on.
+ *
+ * The candidate runs one step at a time, which is a whole block when the JIT
+ * runs it, and the reference single steps until it has run as many
+ * instructions. Every interval instructions the registers, segment registers,
+ * flags and memory are compared. Memory is compared through
+ * CPU.page_hashes(), so only pages written since the last comparison cost
+ * anything.
+ *
+ * Both CPUs have to start from the same state and see the same I/O. Hardware
+ * interrupts are only taken between steps, so a CPU with devices that
+ * interrupt it will show a difference as soon as one arrives in the middle of
+ * a compiled block.
+ *
+ * @author jkim13
+ */
+public class Lockstep {
+
+    public final CPU reference, candidate;
+
+    /**
+     * Instructions between comparisons of the registers
+     */
+    public int interval = 1;
+
+    /**
+     * Instructions run by the last call to run(), on the reference
+     */
+    public long instructions;
+
+    /**
+     * Addresses (cs << 16 | ip) of the last instructions the reference ran,
+     * to show where things went wrong
+     */
+    private static final int HISTORY = 16;
+    private final int[] history = new int[HISTORY];
+    private int history_position;
+    private int history_count;
+
+    public Lockstep(CPU reference, CPU candidate) {
+        this.reference = reference;
+        this.candidate = candidate;
+    }
+
+    private static void step(CPU cpu) {
+        try {
+            cpu.step();
+        } catch (HLTException e) {
+            cpu.halted = true;
+        }
+    }
+
+    /**
+     * Run both CPUs for count instructions (counted on the reference), or until
+     * they both halt.
+     *
+     * @param count
+     * @return A description of the first difference, or null if there was
+     * none
+     */
+    public String run(long count) {
+        int start = reference.instructions;
+        try {
+            return run_until(start + count);
+        } finally {
+            instructions = reference.instructions - start;
+        }
+    }
+
+    private String run_until(long end) {
+        int last_compare = reference.instructions;
+        history_count = 0;
+        while (reference.instructions < end && !(reference.halted && candidate.halted)) {
+            if (!candidate.halted) {
+                step(candidate);
+            }
+            while (!reference.halted && reference.instructions < candidate.instructions) {
+                history[history_position] = reference.cs << 16 | reference.eip;
+                history_position = (history_position + 1) % HISTORY;
+                history_count++;
+                step(reference);
+            }
+            boolean stopped = reference.halted || candidate.halted;
+            if (reference.instructions != candidate.instructions) {
+                return report("instruction count", last_compare);
+            }
+            if (reference.instructions - last_compare < interval && !stopped) {
+                continue;
+            }
+            String difference = compare_registers();
+            if (difference == null) {
+                difference = compare_memory();
+            }
+            if (difference != null) {
+                return report(difference, last_compare);
+            }
+            last_compare = reference.instructions;
+            history_count = 0;
+        }
+        String difference = compare_registers();
+        if (difference == null) {
+            difference = compare_memory();
+        }
+        return difference == null ? null : report(difference, last_compare);
+    }
+
+    private String compare_registers() {
+        StringBuilder sb = new StringBuilder();
+        String[] names = {"AX", "CX", "DX", "BX", "SP", "BP", "SI", "DI"};
+        for (int i = 0; i < 8; i++) {
+            if (reference.registers[i] != candidate.registers[i]) {
+                sb.append(names[i]).append(' ');
+            }
+        }
+        if (reference.cs != candidate.cs) {
+            sb.append("CS ");
+        }
+        if (reference.eip != candidate.eip) {
+            sb.append("IP ");
+        }
+        if (reference.ds != candidate.ds) {
+            sb.append("DS ");
+        }
+        if (reference.es != candidate.es) {
+            sb.append("ES ");
+        }
+        if (reference.ss != candidate.ss) {
+            sb.append("SS ");
+        }
+        if (reference.get_eflags() != candidate.get_eflags()) {
+            sb.append("flags ");
+        }
+        if (reference.halted != candidate.halted) {
+            sb.append("halted ");
+        }
+        if (reference.waiting != candidate.waiting) {
+            sb.append("waiting ");
+        }
+        return sb.length() == 0 ? null : sb.toString().trim();
+    }
+
+    private String compare_memory() {
+        long[] reference_hashes = reference.page_hashes();
+        long[] candidate_hashes = candidate.page_hashes();
+        for (int page = 0; page < CPU.PAGES; page++) {
+            if (reference_hashes[page] != candidate_hashes[page]) {
+                int address = page << CPU.PAGE_SHIFT;
+                int end = address + CPU.PAGE_SIZE - 1;
+                while (address < end && reference.ram[address] == candidate.ram[address]) {
+                    address++;
+                }
+                return String.format("memory at %05x (%02x, %02x)", address,
+                        reference.ram[address] & 0xFF, candidate.ram[address] & 0xFF);
+            }
+        }
+        return null;
+    }
+
+    private static String state(CPU cpu) {
+        return String.format("AX=%04x CX=%04x DX=%04x BX=%04x SP=%04x BP=%04x SI=%04x DI=%04x"
+                + " CS=%04x IP=%04x DS=%04x ES=%04x SS=%04x flags=%04x%s",
+                cpu.registers[CPU.AX], cpu.registers[CPU.CX], cpu.registers[CPU.DX], cpu.registers[CPU.BX],
+                cpu.registers[CPU.SP], cpu.registers[CPU.BP], cpu.registers[CPU.SI], cpu.registers[CPU.DI],
+                cpu.cs, cpu.eip, cpu.ds, cpu.es, cpu.ss, cpu.get_eflags(), cpu.halted ? " halted" : "");
+    }
+
+    private String report(String difference, int last_compare) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Difference in %s after instruction %d (last match after %d)%n",
+                difference, reference.instructions, last_compare));
+        sb.append("Instructions since then:\n");
+        int shown = Math.min(history_count, HISTORY);
+        if (history_count > shown) {
+            sb.append(String.format("  (%d before these)%n", history_count - shown));
+        }
+        for (int i = shown; i > 0; i--) {
+            int address = history[(history_position - i + HISTORY) % HISTORY];
+            sb.append("  ").append(Disassembler.disassemble(reference, address >>> 16, address & 0xFFFF, 1));
+        }
+        sb.append("reference: ").append(state(reference)).append('\n');
+        sb.append("candidate: ").append(state(candidate)).append('\n');
+        return sb.toString();
+    }
+}
@@ -18,4 +18,14 @@ public class MemoryMap {
     public void handler(int addr, int data){
         throw new UnsupportedOperationException("TODO");
     }
+
+    /**
+     * Called on reads from pages registered with CPU.add_mmio. Maps that
+     * don't override this read like an empty bus, 0xFF.
+     * @param addr
+     * @return The byte at addr
+     */
+    public int read_handler(int addr){
+        return 0xFF;
+    }
 }
@@ -0,0 +1,76 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.cpu;
+
+import java.io.PrintStream;
+
+/**
+ * Remembers the last few instructions (cs, ip, opcode, flags and registers)
+ * in a fixed int array, and prints them out only when something goes wrong.
+ * Nothing is allocated while tracing.
+ *
+ * @author jkim13
+ */
+public class RingBufferTracer implements Tracer {
+
+    // instruction number, cs, ip, opcode, flags, then the 8 registers
+    private final static int ENTRY_SIZE = 13;
+
+    private final int[] buffer;
+    private final int size;
+    private int position;
+    private long count;
+
+    private final PrintStream out;
+
+    public RingBufferTracer(int size) {
+        this(size, System.err);
+    }
+
+    public RingBufferTracer(int size, PrintStream out) {
+        this.size = size;
+        this.buffer = new int[size * ENTRY_SIZE];
+        this.out = out;
+    }
+
+    @Override
+    public void trace(CPU cpu) {
+        int[] b = buffer;
+        int o = position * ENTRY_SIZE;
+        b[o] = cpu.instructions;
+        b[o + 1] = cpu.cs;
+        b[o + 2] = cpu.eip;
+        // Straight from ram[], so that tracing never calls a MemoryMap
+        b[o + 3] = cpu.ram[((cpu.cs << 4) + (cpu.eip & 0xFFFF)) & 0xFFFFF] & 0xFF;
+        b[o + 4] = cpu.get_eflags();
+        System.arraycopy(cpu.registers, 0, b, o + 5, 8);
+        if (++position == size) {
+            position = 0;
+        }
+        count++;
+    }
+
+    @Override
+    public void dump(CPU cpu, Throwable cause) {
+        out.printf("CPU: %s at %04x:%04x, last %d instructions:\n", cause, cpu.cs, cpu.eip, Math.min(count, size));
+        int entries = (int) Math.min(count, size);
+        int start = count > size ? position : 0;
+        for (int i = 0; i < entries; i++) {
+            int o = ((start + i) % size) * ENTRY_SIZE;
+            out.printf("(%d) %04x:%04x -> %02x  flags: %04x\n", buffer[o], buffer[o + 1], buffer[o + 2], buffer[o + 3], buffer[o + 4]);
+            out.printf("  AX: %04x CX: %04x DX: %04x BX: %04x SP: %04x BP: %04x SI: %04x DI: %04x\n",
+                    buffer[o + 5], buffer[o + 6], buffer[o + 7], buffer[o + 8], buffer[o + 9], buffer[o + 10], buffer[o + 11], buffer[o + 12]);
+        }
+    }
+
+    /**
+     * Forget everything we recorded so far
+     */
+    public void clear() {
+        position = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package dos.emulator.cpu;
+
+/**
+ * Gets told about every instruction the CPU runs. Set CPU.tracer to one of
+ * these to turn tracing on; when it is null, nothing is traced at all.
+ *
+ * @author jkim13
+ */
+public interface Tracer {
+
+    /**
+     * Called right before an instruction runs. cs:eip points to it.
+     *
+     * @param cpu
+     */
+    void trace(CPU cpu);
+
+    /**
+     * Called when an instruction throws (unknown opcode, HLT, ...).
+     *
+     * @param cpu
+     * @param cause
+     */
+    void dump(CPU cpu, Throwable cause);
+}